@@ -0,0 +1,61 @@
+package com.mattibal.meshnet;
+
+/**
+ * The CRC16 XMODEM (polynomial 0x1021, initial value 0) used by the serial
+ * layer2 of MeshNet. It's the same CRC calculated in the Arduino library
+ * by _crc_xmodem_update() of avr-libc.
+ * 
+ * It's calculated one byte at a time with a lookup table, instead of
+ * one bit at a time.
+ */
+public class Crc16Xmodem implements FrameChecksum {
+	
+	public static final Crc16Xmodem INSTANCE = new Crc16Xmodem();
+	
+	private static final int POLYNOMIAL = 0x1021;
+	
+	/** The CRC of every possible byte, when the CRC was zero before it */
+	private static final int[] table = new int[256];
+	
+	static {
+		for(int i=0; i<256; i++){
+			int crc = i << 8;
+			for(int bit=0; bit<8; bit++){
+				if((crc & 0x8000) != 0){
+					crc = (crc << 1) ^ POLYNOMIAL;
+				} else {
+					crc <<= 1;
+				}
+			}
+			table[i] = crc & 0xffff;
+		}
+	}
+	
+	protected Crc16Xmodem(){
+	}
+	
+	@Override
+	public int init(){
+		return 0;
+	}
+	
+	@Override
+	public int update(int crc, byte data){
+		return ((crc << 8) ^ table[((crc >> 8) ^ data) & 0xff]) & 0xffff;
+	}
+	
+	@Override
+	public int update(int crc, byte[] data, int offset, int len){
+		int end = offset+len;
+		for(int i=offset; i<end; i++){
+			crc = (crc << 8) ^ table[((crc >> 8) ^ data[i]) & 0xff];
+		}
+		return crc & 0xffff;
+	}
+	
+	@Override
+	public int getLength(){
+		return 2;
+	}
+	
+}
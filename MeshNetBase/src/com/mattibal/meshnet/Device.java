@@ -1,6 +1,11 @@
 package com.mattibal.meshnet;
 
 import java.io.IOException;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -50,11 +55,28 @@ public class Device {
 	 */
 	private final Set<CommandReceivedListener> listeners = new HashSet<CommandReceivedListener>();
 	
+	/**
+	 * The last payload not yet sent of every coalescible command, indexed
+	 * by command, null for the other commands. Guarded by itself.
+	 */
+	private final PendingCommand[] pendingCommands = new PendingCommand[256];
+	/** The coalescible commands, see {@link CoalescibleCommands} */
+	private final int[] coalescibleCommands;
+	/** True if this device is in the queue of the CommandSender */
+	private boolean flushScheduled = false;
+	/** The next device in the queue of the CommandSender, guarded by its lock */
+	private Device nextToFlush = null;
+	
 	
 	/** This constructor also add the Device to the knownDevices */
 	protected Device(int uniqueDeviceId, int deviceType){
 		this.uniqueDeviceId=uniqueDeviceId;
 		this.deviceType=deviceType;
+		CoalescibleCommands coalescible = getClass().getAnnotation(CoalescibleCommands.class);
+		coalescibleCommands = coalescible != null ? coalescible.value() : new int[0];
+		for(int command : coalescibleCommands){
+			pendingCommands[command] = new PendingCommand();
+		}
 		knownUniqueDevicesId.put(uniqueDeviceId,this);
 	}
 	
@@ -141,13 +163,93 @@ public class Device {
 	}
 	
 	
+	/**
+	 * Send a command to the device.
+	 * 
+	 * If the command is coalescible, the data is copied and the command is
+	 * sent later by the CommandSender thread, as fast as the link allows: if
+	 * in the meantime the same command is sent again, only the last data is
+	 * sent. In this case the errors can't be reported to the caller.
+	 */
 	public void sendCommand(int command, byte[] data) throws IOException{
+		PendingCommand pending = pendingCommands[command];
+		if(pending != null){
+			synchronized(pendingCommands){
+				pending.set(data);
+				if(!flushScheduled){
+					flushScheduled = true;
+					CommandSender.schedule(this);
+				}
+			}
+			return;
+		}
+		sendCommandNow(command, data);
+	}
+	
+	/**
+	 * Forget the data of a coalescible command that is still not sent,
+	 * because a newer one has been sent in another way (see DeviceGroup)
+	 */
+	void discardPendingCommand(int command){
+		PendingCommand pending = pendingCommands[command];
+		if(pending != null){
+			synchronized(pendingCommands){
+				pending.isPending = false;
+			}
+		}
+	}
+	
+	synchronized Layer4SimpleRpc getLayer4(){
+		return layer4;
+	}
+	
+	private void sendCommandNow(int command, byte[] data) throws IOException{
 		Layer4SimpleRpc l4;
 		synchronized(this){
 			l4 = layer4;
 		}
 		l4.sendCommandRequest(command, data);
 	}
+	
+	/**
+	 * Send the pending coalescible commands, called by the CommandSender
+	 */
+	private void flushPendingCommands(){
+		while(true){
+			int command = -1;
+			byte[] data = null;
+			synchronized(pendingCommands){
+				for(int c : coalescibleCommands){
+					if(pendingCommands[c].isPending){
+						command = c;
+						data = pendingCommands[c].take();
+						break;
+					}
+				}
+				if(data == null){
+					flushScheduled = false;
+					return;
+				}
+			}
+			try {
+				sendCommandNow(command, data);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Send a command, and get a future completed with the response of the
+	 * device when it has executed it (see Layer4SimpleRpc.sendCommandRequestAsync)
+	 */
+	public Layer4SimpleRpc.PendingRequest sendCommandAsync(int command, byte[] data) throws IOException{
+		Layer4SimpleRpc l4;
+		synchronized(this){
+			l4 = layer4;
+		}
+		return l4.sendCommandRequestAsync(command, data);
+	}
 		
 	public int getUniqueId(){
 		return uniqueDeviceId;
@@ -175,6 +277,106 @@ public class Device {
 	
 	
 	
+	/**
+	 * Marks the commands of a Device subclass that can be coalesced: they
+	 * set a state of the device, so when a newer value is sent before the
+	 * older one has left the base, the older one can be discarded.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	@Inherited
+	public static @interface CoalescibleCommands {
+		int[] value();
+	}
+	
+	/** The last data of a coalescible command, guarded by pendingCommands */
+	private static class PendingCommand {
+		private byte[] data = new byte[0];
+		private int len = 0;
+		private boolean isPending = false;
+		/** The data taken to be sent, reused if the length doesn't change */
+		private byte[] sendData = new byte[0];
+		
+		private void set(byte[] newData){
+			if(newData.length > data.length){
+				data = new byte[newData.length];
+			}
+			System.arraycopy(newData, 0, data, 0, newData.length);
+			len = newData.length;
+			isPending = true;
+		}
+		
+		/**
+		 * The returned array is reused by the next take(), so it must be
+		 * used only by the CommandSender
+		 */
+		private byte[] take(){
+			isPending = false;
+			if(sendData.length != len){
+				sendData = new byte[len];
+			}
+			System.arraycopy(data, 0, sendData, 0, len);
+			return sendData;
+		}
+	}
+	
+	/**
+	 * The thread that sends the coalescible commands of all devices. It sends
+	 * them one after another, so it's slowed down by the link, and the newer
+	 * commands replace the older ones while they are waiting.
+	 */
+	private static class CommandSender extends Thread {
+		
+		// The queue of the devices to flush is linked through their nextToFlush,
+		// so scheduling a device doesn't allocate anything. Guarded by this class.
+		private static Device firstToFlush = null;
+		private static Device lastToFlush = null;
+		
+		static {
+			new CommandSender().start();
+		}
+		
+		private CommandSender(){
+			super("MeshNet command sender");
+			setDaemon(true);
+		}
+		
+		/** A device must be scheduled only if it's not already in the queue */
+		private static synchronized void schedule(Device device){
+			if(lastToFlush == null){
+				firstToFlush = device;
+			} else {
+				lastToFlush.nextToFlush = device;
+			}
+			lastToFlush = device;
+			CommandSender.class.notify();
+		}
+		
+		private static synchronized Device takeDeviceToFlush() throws InterruptedException{
+			while(firstToFlush == null){
+				CommandSender.class.wait();
+			}
+			Device device = firstToFlush;
+			firstToFlush = device.nextToFlush;
+			if(firstToFlush == null){
+				lastToFlush = null;
+			}
+			device.nextToFlush = null;
+			return device;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while(true){
+					takeDeviceToFlush().flushPendingCommands();
+				}
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+	
+	
 	/**
 	 * Thrown when it's requested the execution of a command that doesn't exist
 	 * for this kind of device
@@ -0,0 +1,105 @@
+package com.mattibal.meshnet;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A group of devices that can receive the same command with a packet for
+ * every root node, instead of a packet for every device.
+ * 
+ * The command is sent to the ranges of addresses that contain only devices
+ * of the group (and unused addresses), so with devices that have near
+ * addresses, like the ones under the same parent, only few packets are
+ * needed.
+ * 
+ * The devices should be of the same type, because the meaning of a command
+ * depends on the device type. Async requests can't be sent to a group,
+ * because all the devices would answer with the same sequence number.
+ */
+public class DeviceGroup {
+	
+	private final Set<Device> devices = new HashSet<Device>();
+	
+	public synchronized void addDevice(Device device){
+		devices.add(device);
+	}
+	
+	public synchronized void removeDevice(Device device){
+		devices.remove(device);
+	}
+	
+	/**
+	 * Returns a copy of the devices of this group
+	 */
+	public synchronized Set<Device> getDevices(){
+		return new HashSet<Device>(devices);
+	}
+	
+	/**
+	 * Send a command to all the devices of the group that are connected.
+	 * @throws IOException when for some reasons the packet MIGHT not been arrived
+	 */
+	public void sendCommand(int command, byte[] data) throws IOException{
+		if(command < 0 || command >= Layer4SimpleRpc.REQUEST_SEQ_FLAG){
+			throw new IllegalArgumentException("Invalid command for a group: "+command);
+		}
+		// The addresses of the devices, for every tree
+		Map<NetworkTree, boolean[]> members = new HashMap<NetworkTree, boolean[]>();
+		Map<NetworkTree, Layer3Base> layers3 = new HashMap<NetworkTree, Layer3Base>();
+		for(Device device : getDevices()){
+			// A value of this command that is still waiting would overwrite this one
+			device.discardPendingCommand(command);
+			Layer4SimpleRpc l4 = device.getLayer4();
+			if(l4 == null){
+				continue;
+			}
+			NetworkTree.Node node = l4.getNode();
+			int address = node.getAddress();
+			if(address < 0 || address >= NetworkTree.NUM_ADDRESSES){
+				continue;
+			}
+			NetworkTree tree = node.getTree();
+			boolean[] treeMembers = members.get(tree);
+			if(treeMembers == null){
+				treeMembers = new boolean[NetworkTree.NUM_ADDRESSES];
+				members.put(tree, treeMembers);
+				layers3.put(tree, l4.getLayer3());
+			}
+			treeMembers[address] = true;
+		}
+		
+		byte[] payload = new byte[data.length+1];
+		payload[0] = (byte) command;
+		System.arraycopy(data, 0, payload, 1, data.length);
+		
+		for(Map.Entry<NetworkTree, boolean[]> entry : members.entrySet()){
+			NetworkTree tree = entry.getKey();
+			boolean[] treeMembers = entry.getValue();
+			Layer3Base layer3 = layers3.get(tree);
+			int addr = 0;
+			while(addr < NetworkTree.NUM_ADDRESSES){
+				if(!treeMembers[addr]){
+					addr++;
+					continue;
+				}
+				// Extend the range until I find a device that is not of the group
+				int start = addr;
+				int stop = addr;
+				addr++;
+				while(addr < NetworkTree.NUM_ADDRESSES){
+					if(treeMembers[addr]){
+						stop = addr;
+					} else if(tree.getNodeFromAddress(addr) != null){
+						break;
+					}
+					addr++;
+				}
+				layer3.sendDataToAddressRange(payload, tree, start, stop);
+			}
+		}
+	}
+
+}
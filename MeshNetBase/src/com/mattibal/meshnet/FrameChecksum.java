@@ -0,0 +1,30 @@
+package com.mattibal.meshnet;
+
+/**
+ * A checksum that a layer2 appends to its frames to detect the corrupted ones.
+ * 
+ * The checksum can be calculated incrementally: start from {@link #init()},
+ * then pass every byte (or range of bytes) of the frame to the update
+ * methods, in order. The value is kept in an int, so nothing is allocated.
+ * 
+ * Implementations must not have any state, so the same instance can be
+ * shared by many layer2 interfaces and threads.
+ */
+public interface FrameChecksum {
+	
+	/** @return The value of the checksum before any byte has been added */
+	public int init();
+	
+	/** @return The checksum updated with one more byte */
+	public int update(int checksum, byte data);
+	
+	/** @return The checksum updated with len bytes of data, starting from offset */
+	public int update(int checksum, byte[] data, int offset, int len);
+	
+	/**
+	 * @return How many bytes the checksum takes in a frame, from 1 to 4.
+	 * The frame contains the lowest bytes of the value, in little endian.
+	 */
+	public int getLength();
+	
+}
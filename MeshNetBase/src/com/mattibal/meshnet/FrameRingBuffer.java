@@ -0,0 +1,233 @@
+package com.mattibal.meshnet;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded ring buffer of received layer3 frames, with a single producer
+ * (the thread of a layer2 interface) and a single consumer (the dispatcher
+ * thread of Layer3Base that serves that interface).
+ *
+ * Every slot owns a preallocated byte array, so enqueuing a frame only copies
+ * its bytes into the next free slot, and no lock is ever taken. When the ring
+ * is full the new frame is dropped, like a layer2 would do with a corrupted
+ * frame: the upper layers must already tolerate lost packets.
+ * 
+ * A layer2 can also avoid the copy, decoding its frames directly in the
+ * slots: see {@link #claimSlot()} and {@link #publishSlot(int, int, int)}.
+ */
+public class FrameRingBuffer {
+
+	/** Max time the consumer parks before checking again for new frames */
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final int capacity;
+	private final int mask;
+	private final int slotSize;
+
+	private final byte[][] slotBytes;
+	private final ByteBuffer[] slotBuffers;
+	private final int[] slotOffsets;
+	private final int[] slotLengths;
+	private final int[] slotSrcMacs;
+	
+	/** Buffers that starts at slotOffsets, created only when the offset changes */
+	private final ByteBuffer[] slotSlices;
+	private final int[] slotSliceOffsets;
+
+	/** Index of the next slot the consumer will read */
+	private final AtomicLong head = new AtomicLong(0);
+	/** Index of the next slot the producer will write */
+	private final AtomicLong tail = new AtomicLong(0);
+
+	/** The consumer thread, when it's parked waiting for a frame */
+	private volatile Thread waitingConsumer = null;
+
+	private final AtomicLong droppedFrames = new AtomicLong(0);
+
+
+	/**
+	 * @param capacity The number of slots, it must be a power of two
+	 * @param slotSize The max length of a frame that can be enqueued
+	 */
+	public FrameRingBuffer(int capacity, int slotSize){
+		if(capacity <= 0 || (capacity & (capacity-1)) != 0){
+			throw new IllegalArgumentException("capacity must be a power of two");
+		}
+		this.capacity = capacity;
+		this.mask = capacity-1;
+		this.slotSize = slotSize;
+		slotBytes = new byte[capacity][];
+		slotBuffers = new ByteBuffer[capacity];
+		slotOffsets = new int[capacity];
+		slotLengths = new int[capacity];
+		slotSrcMacs = new int[capacity];
+		slotSlices = new ByteBuffer[capacity];
+		slotSliceOffsets = new int[capacity];
+		for(int i=0; i<capacity; i++){
+			slotBytes[i] = new byte[slotSize];
+			slotBuffers[i] = ByteBuffer.wrap(slotBytes[i]);
+		}
+	}
+
+
+	/**
+	 * Copy the remaining bytes of the frame into the next free slot.
+	 * Must be called only by the producer thread.
+	 * The position of the frame buffer is not modified.
+	 *
+	 * @return false if the frame has been dropped because the ring is full
+	 * or the frame is too long
+	 */
+	public boolean offer(ByteBuffer frame, int srcMacAddress){
+		int len = frame.remaining();
+		long t = tail.get();
+		if(len > slotSize || t - head.get() >= capacity){
+			droppedFrames.incrementAndGet();
+			return false;
+		}
+		int slot = (int) t & mask;
+		byte[] dst = slotBytes[slot];
+		if(frame.hasArray()){
+			System.arraycopy(frame.array(), frame.arrayOffset()+frame.position(), dst, 0, len);
+		} else {
+			int pos = frame.position();
+			for(int i=0; i<len; i++){
+				dst[i] = frame.get(pos+i);
+			}
+		}
+		slotOffsets[slot] = 0;
+		slotLengths[slot] = len;
+		slotSrcMacs[slot] = srcMacAddress;
+		publish(t);
+		return true;
+	}
+	
+	
+	/**
+	 * Get the byte array of the next free slot, so the producer can write
+	 * a frame directly into it. The slot is given to the consumer only when
+	 * {@link #publishSlot(int, int, int)} is called, until then every call
+	 * of this method returns the same array.
+	 * Must be called only by the producer thread.
+	 * 
+	 * @return null if the ring is full
+	 */
+	public byte[] claimSlot(){
+		long t = tail.get();
+		if(t - head.get() >= capacity){
+			return null;
+		}
+		return slotBytes[(int) t & mask];
+	}
+	
+	/**
+	 * Give to the consumer the slot returned by {@link #claimSlot()}, after the
+	 * producer has written a frame into it.
+	 * Must be called only by the producer thread.
+	 * 
+	 * @param offset The position of the first byte of the frame in the slot
+	 * @param length The length of the frame
+	 */
+	public void publishSlot(int offset, int length, int srcMacAddress){
+		long t = tail.get();
+		int slot = (int) t & mask;
+		slotOffsets[slot] = offset;
+		slotLengths[slot] = length;
+		slotSrcMacs[slot] = srcMacAddress;
+		publish(t);
+	}
+	
+	/**
+	 * Count a frame that the producer had to drop because the ring was full
+	 * when it started receiving it.
+	 */
+	public void countDroppedFrame(){
+		droppedFrames.incrementAndGet();
+	}
+	
+	/** @return The max length of a frame, that is also the size of every slot */
+	public int getSlotSize(){
+		return slotSize;
+	}
+	
+	private void publish(long t){
+		tail.set(t+1);
+		Thread consumer = waitingConsumer;
+		if(consumer != null){
+			LockSupport.unpark(consumer);
+		}
+	}
+
+
+	/**
+	 * Wait for the next frame. Must be called only by the consumer thread.
+	 *
+	 * The returned buffer is owned by the ring: it's valid only until
+	 * {@link #releaseFrame()} is called, so it must not be retained, and it
+	 * must be considered read-only.
+	 *
+	 * @return A buffer where the frame starts at index 0 and ends at the limit
+	 */
+	public ByteBuffer takeFrame() throws InterruptedException {
+		long h = head.get();
+		while(tail.get() == h){
+			waitingConsumer = Thread.currentThread();
+			if(tail.get() == h){
+				LockSupport.parkNanos(this, MAX_PARK_NANOS);
+			}
+			waitingConsumer = null;
+			if(Thread.interrupted()){
+				throw new InterruptedException();
+			}
+		}
+		int slot = (int) h & mask;
+		int offset = slotOffsets[slot];
+		ByteBuffer buf;
+		if(offset == 0){
+			buf = slotBuffers[slot];
+		} else {
+			buf = slotSlices[slot];
+			if(buf == null || slotSliceOffsets[slot] != offset){
+				// A layer2 always uses the same offset, so this happens only once per slot
+				ByteBuffer whole = slotBuffers[slot];
+				whole.clear();
+				whole.position(offset);
+				buf = whole.slice();
+				slotSlices[slot] = buf;
+				slotSliceOffsets[slot] = offset;
+			}
+		}
+		buf.clear();
+		buf.limit(slotLengths[slot]);
+		buf.order(ByteOrder.BIG_ENDIAN);
+		return buf;
+	}
+
+	/**
+	 * @return The layer2 source address of the frame returned by the last
+	 * {@link #takeFrame()}
+	 */
+	public int getTakenFrameSrcMac(){
+		return slotSrcMacs[(int) head.get() & mask];
+	}
+
+	/**
+	 * Give back to the producer the slot of the frame returned by the last
+	 * {@link #takeFrame()}
+	 */
+	public void releaseFrame(){
+		head.set(head.get()+1);
+	}
+
+	/**
+	 * @return The number of frames dropped since this ring has been created
+	 */
+	public long getDroppedFrames(){
+		return droppedFrames.get();
+	}
+
+}
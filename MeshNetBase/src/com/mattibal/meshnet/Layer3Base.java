@@ -5,14 +5,19 @@ import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.acl.LastOwnerException;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
-import com.mattibal.meshnet.Layer3Packet.Beacon;
 import com.mattibal.meshnet.Layer3Packet.BeaconChildResponse;
-import com.mattibal.meshnet.Layer3Packet.BeaconParentResponse;
-import com.mattibal.meshnet.Layer3Packet.DataToBase;
 import com.mattibal.meshnet.Layer3Packet.DataToDevice;
+import com.mattibal.meshnet.Layer3Packet.DataToRange;
 import com.mattibal.meshnet.Layer3Packet.InvalidPacketException;
 import com.mattibal.meshnet.NetworkTree.InconsistentTreeStructureException;
 import com.mattibal.meshnet.NetworkTree.Node;
@@ -32,74 +37,236 @@ public class Layer3Base {
 	private int networkId = 18287;
 	private int networkKey = 48384;
 	
+	/** The max length of a layer3 packet that a layer2 can pass to this base */
+	public static final int MAX_PACKET_LEN = 64;
+	
+	/** The number of frames that can wait in the receive queue of an interface */
+	public static final int RECEIVE_QUEUE_LEN = 64;
+	
+	// Reasons to drop a received packet, in addition to the Layer3Packet parse results
+	/** The HMAC of the packet is wrong */
+	public static final int DROP_INVALID_HMAC = Layer3Packet.NUM_PARSE_RESULTS;
+	/** The packet is of a type that only devices should receive */
+	public static final int DROP_WRONG_DIRECTION = Layer3Packet.NUM_PARSE_RESULTS+1;
+	private static final int NUM_DROP_REASONS = Layer3Packet.NUM_PARSE_RESULTS+2;
+	
+	/** Counters of the received packets dropped, indexed by reason */
+	private final AtomicLongArray droppedPackets = new AtomicLongArray(NUM_DROP_REASONS);
+	
 	/**
 	 * The network interfaces (layer2) physically connected to this base
 	 */
-	private final Set<ILayer2> interfaces = new HashSet<ILayer2>(); 
+	private final Set<ILayer2> interfaces = new CopyOnWriteArraySet<ILayer2>();
+	
+	/**
+	 * The receive queue of every interface. Each queue is served by its own
+	 * ReceiveDispatcher thread, so frames of different interfaces are
+	 * processed in parallel.
+	 */
+	private final ConcurrentHashMap<ILayer2, FrameRingBuffer> receiveQueues =
+			new ConcurrentHashMap<ILayer2, FrameRingBuffer>();
+	
+	/**
+	 * The buffers used to build the DataToDevice packets, indexed by packet
+	 * length, because the layer2 needs an array as long as the packet.
+	 */
+	private final byte[][] txBuffers = new byte[MAX_PACKET_LEN+1][];
+	
 	
+	// These fields must be written only while holding the lock of this
+	// Layer3Base object. They are volatile so the receive dispatchers can
+	// read them without locking.
+	private volatile NetworkTree newTree = null;
+	private volatile NetworkTree activeTree = null;
 	
-	// When you access these fields, you must hold the lock of BaseLayer3 object
-	private NetworkTree newTree = null;
-	private NetworkTree activeTree = null;
+	// Used by NetworkSetupThread to wait for the devices, guarded by the
+	// lock of this Layer3Base, that is notified when they change.
+	/** When the last beacon response has been received, in System.nanoTime() */
+	private long lastBeaconResponseNanos = 0;
+	/** The join round of the last beacon sent, see Layer3Packet.Beacon */
+	private int beaconJoinRound = 0;
+	/** Incremented every time a node of newTree becomes assigned */
+	private int assignedNodesEvents = 0;
 	
 	
 	public Layer3Base(){
 		
 	}
 	
-	protected synchronized void addLayer2Interface(ILayer2 interf){
-		interfaces.add(interf);
+	/**
+	 * @return The receive queue of the interface. A layer2 can decode its
+	 * frames directly into its slots, instead of calling onFrameReceived.
+	 */
+	protected FrameRingBuffer addLayer2Interface(ILayer2 interf){
+		return getReceiveQueue(interf);
+	}
+	
+	private FrameRingBuffer getReceiveQueue(ILayer2 interf){
+		FrameRingBuffer queue = receiveQueues.get(interf);
+		if(queue == null){
+			synchronized(receiveQueues){
+				queue = receiveQueues.get(interf);
+				if(queue == null){
+					queue = new FrameRingBuffer(RECEIVE_QUEUE_LEN, MAX_PACKET_LEN);
+					receiveQueues.put(interf, queue);
+					interfaces.add(interf);
+					new ReceiveDispatcher(interf, queue).start();
+				}
+			}
+		}
+		return queue;
+	}
+	
+	
+	/**
+	 * This is the method called by a layer2 when it receives a frame of data.
+	 * 
+	 * It only copies the frame in the receive queue of the interface, so it
+	 * never blocks the layer2. The frame is processed later by the
+	 * dispatcher thread of that interface.
+	 */
+	public void onFrameReceived(ByteBuffer frame, ILayer2 srcInterface, int srcMacAddress){ 
+		getReceiveQueue(srcInterface).offer(frame, srcMacAddress);
 	}
 	
 	
 	/**
-	 * This is the method called by a layer2 when it receives a frame of data
+	 * This thread takes the frames received by an interface from its
+	 * receive queue, and handles them.
+	 * 
+	 * Since every node is reachable only through the interface of its root
+	 * node, all the packets of a node are handled by the same dispatcher,
+	 * in the same order they have been received.
+	 * 
+	 * DataToBase packets are passed to the Layer4 of the source node without
+	 * taking any lock of this base, the other packets modify the network tree
+	 * so they are handled while holding the lock of the base.
 	 */
-	public synchronized void onFrameReceived(ByteBuffer frame, ILayer2 srcInterface, int srcMacAddress){ 
-
-		try {
-			Layer3Packet packet = Layer3Packet.buildFromByteArray(frame);
-			if(packet instanceof DataToBase){
-				DataToBase dataToBase = (DataToBase) packet;
-				// verify hmac? (now it doesn't have hmac)
-				onDataToBase(dataToBase);
-			} else if(packet instanceof BeaconChildResponse){
-				BeaconChildResponse beaconChildResponse = (BeaconChildResponse) packet;
-				System.out.println("ricevuto BeaconChildResponse childNonce:"+beaconChildResponse.getChildNonce());
-				// TODO verify hmac with different tree baseNonces
-				beaconChildResponse.verifyHmac(newTree.baseNonce, srcMacAddress);
-				onBeaconChildResponse(beaconChildResponse, srcInterface, srcMacAddress);
-			} else if(packet instanceof BeaconParentResponse){
-				BeaconParentResponse beaconParentResponse = (BeaconParentResponse) packet;
-				System.out.println("ricevuto BeaconParentResponse parentNonce:"+beaconParentResponse.getParentNonce()+" childNonce:"+beaconParentResponse.getChildNonce());
-				// TODO verify hmac
-				onBeaconParentResponse(beaconParentResponse);
-			} else if(packet instanceof Beacon){
-				// Do nothing... this might just be useful for debugging
-			} else {
-				System.out.println("Unknow type packet arrived");
+	private final class ReceiveDispatcher extends Thread implements Layer3PacketHandler {
+		
+		private final ILayer2 interf;
+		private final FrameRingBuffer queue;
+		
+		/** The layer2 source address of the frame being handled */
+		private int srcMacAddress;
+		
+		public ReceiveDispatcher(ILayer2 interf, FrameRingBuffer queue){
+			super("MeshNet receive dispatcher "+receiveQueues.size());
+			this.interf = interf;
+			this.queue = queue;
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while(true){
+					ByteBuffer frame = queue.takeFrame();
+					try {
+						srcMacAddress = queue.getTakenFrameSrcMac();
+						int result = Layer3Packet.decode(frame, this);
+						if(result != Layer3Packet.PARSE_OK){
+							droppedPackets.incrementAndGet(result);
+						}
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					} finally {
+						queue.releaseFrame();
+					}
+				}
+			} catch (InterruptedException e) {
 			}
-				
-		} catch (Layer3Packet.InvalidPacketException e) {
-			e.printStackTrace();
+		}
+		
+		@Override
+		public void onDataToBase(int srcAddr, ByteBuffer payload) {
+			// verify hmac? (now it doesn't have hmac)
+			handleDataToBase(srcAddr, payload);
+		}
+		
+		@Override
+		public void onBeaconChildResponse(int childNonce, int hmac) {
+			System.out.println("ricevuto BeaconChildResponse childNonce:"+childNonce);
+			synchronized(Layer3Base.this){
+				if(newTree != null){
+					// TODO verify hmac with different tree baseNonces
+					if(BeaconChildResponse.isHmacValid(childNonce, hmac, newTree.baseNonce, networkKey)){
+						handleBeaconChildResponse(childNonce, interf, srcMacAddress);
+					} else {
+						droppedPackets.incrementAndGet(DROP_INVALID_HMAC);
+					}
+				}
+			}
+		}
+		
+		@Override
+		public void onBeaconParentResponse(int childNonce, int parentNonce, int hmac) {
+			System.out.println("ricevuto BeaconParentResponse parentNonce:"+parentNonce+" childNonce:"+childNonce);
+			// TODO verify hmac
+			synchronized(Layer3Base.this){
+				handleBeaconParentResponse(parentNonce, childNonce);
+			}
+		}
+		
+		@Override
+		public void onBeacon(int networkId, int baseNonce) {
+			// Do nothing... this might just be useful for debugging
+		}
+		
+		@Override
+		public void onDataToDevice(int destAddr, ByteBuffer payload) {
+			// Only devices should receive this
+			droppedPackets.incrementAndGet(DROP_WRONG_DIRECTION);
+		}
+		
+		@Override
+		public void onDataToRange(int startAddr, int stopAddr, ByteBuffer payload) {
+			// Only devices should receive this
+			droppedPackets.incrementAndGet(DROP_WRONG_DIRECTION);
+		}
+		
+		@Override
+		public void onAssignAddress(int childNonce, int address, int maxRoute, int hmac) {
+			// Only devices should receive this
+			droppedPackets.incrementAndGet(DROP_WRONG_DIRECTION);
 		}
 	}
 	
 	
+	/**
+	 * @param reason A Layer3Packet parse result, or one of the DROP_* constants
+	 * @return How many received packets have been dropped for that reason
+	 */
+	public long getDroppedPacketCount(int reason){
+		return droppedPackets.get(reason);
+	}
+	
+	
 	/**
 	 * This is the interface that a Layer2 must implements to work with this
 	 * base layer3.
 	 */
 	public static interface ILayer2 {
+		/**
+		 * The array can be reused by the base as soon as this returns, so
+		 * the layer2 must copy the bytes that it sends later
+		 */
 		public void sendLayer3Packet(byte[] bytesToSend, int destMacAddress) throws IOException;
 	}
 	
 	/**
 	 * The interface a Layer4 must implement to receive packets from this
-	 * base Layer3
+	 * base Layer3.
+	 * 
+	 * The data is backed by a slot of a receive queue, so it's valid only
+	 * until onPacketReceived returns.
 	 */
 	public static interface ILayer4 {
-		public void onPacketReceived(Layer3Packet.DataToBase packet);
+		/**
+		 * @param data The payload of a DataToBase packet, with the position
+		 * at the start of the layer4 packet
+		 */
+		public void onPacketReceived(ByteBuffer data);
 	}
 	
 	
@@ -109,11 +276,12 @@ public class Layer3Base {
 	 * Send a beacon to all devices, by broadcasting them to all physical interfaces
 	 * 
 	 * @param tree Needed to ensure that the baseNonce I'm sending is the one of this tree
+	 * @param joinRound 0 for a new tree, otherwise see Layer3Packet.Beacon
 	 * @throws IOException If it was impossible to send a beacon to an interface
 	 */
-	private void sendBeacon(NetworkTree tree) throws IOException{
+	private void sendBeacon(NetworkTree tree, int joinRound) throws IOException{
 		try {
-			Layer3Packet.Beacon beacon = new Layer3Packet.Beacon(networkId, tree.baseNonce);
+			Layer3Packet.Beacon beacon = new Layer3Packet.Beacon(networkId, tree.baseNonce, joinRound);
 			for(ILayer2 interf: interfaces){
 				interf.sendLayer3Packet(beacon.getRawBytes().array(), 0);
 			}
@@ -124,77 +292,109 @@ public class Layer3Base {
 	
 	
 	/**
-	 * Send an assignAddress packet to all devices on the provided network tree
-	 * that (we think) are still not been assigned ("connected" to the network)
-	 * 
-	 * @return false if I haven't sent any message because all devices has been assigned
-	 * @throws IOException 
+	 * Send an assignAddress packet to a node of the provided network tree
 	 */
-	private boolean sendAssignAddressToAllUnassignedDevices(NetworkTree tree) throws IOException{
-		boolean isSomebodyUnassigned = false;
-		NetworkTree.Node unassigned;
-		while( (unassigned = tree.getNextUnassignedNode()) != null){
-			isSomebodyUnassigned = true;
-			// Send assignAddress packet
-			Layer3Packet.AssignAddress packet = new Layer3Packet.AssignAddress(
-					unassigned.getChildNonce(),
-					(short)unassigned.getAddress(), (short)unassigned.getMaxRoute(),
-					tree.baseNonce, networkKey);
-			RootNode rootNode;
-			if(unassigned instanceof RootNode){
-				rootNode = (RootNode) unassigned;
-			} else {
-				rootNode = tree.getRouteToNode(unassigned.getAddress());
-			}
-			rootNode.getNetInterface().sendLayer3Packet(packet.getRawBytes().array(), rootNode.getMacAddress());
+	private void sendAssignAddress(NetworkTree tree, NetworkTree.Node node) throws IOException{
+		Layer3Packet.AssignAddress packet = new Layer3Packet.AssignAddress(
+				node.getChildNonce(),
+				(short)node.getAddress(), (short)node.getMaxRoute(),
+				tree.baseNonce, networkKey);
+		RootNode rootNode;
+		if(node instanceof RootNode){
+			rootNode = (RootNode) node;
+		} else {
+			rootNode = tree.getRouteToNode(node.getAddress());
 		}
-		return isSomebodyUnassigned;
+		rootNode.getNetInterface().sendLayer3Packet(packet.getRawBytes().array(), rootNode.getMacAddress());
 	}
 	
 	
 	public void sendDataToDevice(byte[] dataPayload, NetworkTree.Node destNode) throws IOException{
 		int destinationAddress = destNode.getAddress();
-		DataToDevice packet = new DataToDevice(destinationAddress, dataPayload);
-		byte[] packetBytes = packet.getRawBytes().array();
 		RootNode firstHop = destNode.getRouteToMyself();
-		firstHop.getNetInterface().sendLayer3Packet(packetBytes, firstHop.getMacAddress());
+		int packetLen = 2+dataPayload.length;
+		if(packetLen >= txBuffers.length){
+			// Too long for the reused buffers, the layer2 decides what to do with it
+			byte[] packet = new byte[packetLen];
+			DataToDevice.write(packet, destinationAddress, dataPayload);
+			firstHop.getNetInterface().sendLayer3Packet(packet, firstHop.getMacAddress());
+			return;
+		}
+		synchronized(txBuffers){
+			byte[] packet = txBuffers[packetLen];
+			if(packet == null){
+				packet = new byte[packetLen];
+				txBuffers[packetLen] = packet;
+			}
+			DataToDevice.write(packet, destinationAddress, dataPayload);
+			firstHop.getNetInterface().sendLayer3Packet(packet, firstHop.getMacAddress());
+		}
+	}
+	
+	
+	/**
+	 * Send the same data to all the devices of a tree with an address in
+	 * the range. The packet is sent only once to every root node that routes
+	 * some of these addresses, then the devices forward it to their children.
+	 */
+	public void sendDataToAddressRange(byte[] dataPayload, NetworkTree tree, int startAddr, int stopAddr) throws IOException{
+		byte[] packetBytes = new DataToRange(startAddr, stopAddr, dataPayload).getRawBytes().array();
+		RootNode lastRoot = null;
+		for(int addr = startAddr; addr <= stopAddr; addr++){
+			RootNode root = tree.getRouteToNode(addr);
+			if(root != null && root != lastRoot){
+				// The ranges of the root nodes are contiguous, so I meet every root only once
+				root.getNetInterface().sendLayer3Packet(packetBytes, root.getMacAddress());
+				lastRoot = root;
+			}
+		}
 	}
 	
 	
 	// Incoming packet handlers
 	
-	private void onDataToBase(DataToBase data){
+	private void handleDataToBase(int srcAddr, ByteBuffer data){
 		Node node = null;
-		if(newTree != null){
-			node = newTree.getNodeFromAddress(data.getSourceAddress());
+		NetworkTree tree = newTree;
+		if(tree != null){
+			node = tree.getNodeFromAddress(srcAddr);
 		}
-		if(node==null && activeTree != null){
-			node = activeTree.getNodeFromAddress(data.getSourceAddress());
+		tree = activeTree;
+		if(node==null && tree != null){
+			node = tree.getNodeFromAddress(srcAddr);
 		}
 		if(node!=null){
 			ILayer4 layer4 = node.getLayer4();
 			if(layer4 == null){
 				layer4 = new Layer4SimpleRpc(node, this);
 				node.setLayer4AndAssigned(layer4);
+				synchronized(this){
+					assignedNodesEvents++;
+					notifyAll();
+				}
 			}
 			layer4.onPacketReceived(data);
 		}
 	}
 	
-	private void onBeaconChildResponse(BeaconChildResponse beaconResp, ILayer2 srcInterface, int srcMacAddress){
+	private void handleBeaconChildResponse(int childNonce, ILayer2 srcInterface, int srcMacAddress){
 		if(newTree!=null){
 			try {
-				newTree.setRootNode((int)beaconResp.getChildNonce(), srcInterface, srcMacAddress);
+				newTree.setRootNode(childNonce, srcInterface, srcMacAddress);
+				lastBeaconResponseNanos = System.nanoTime();
+				notifyAll();
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
 		}
 	}
 	
-	private void onBeaconParentResponse(BeaconParentResponse beaconResp){
+	private void handleBeaconParentResponse(int parentNonce, int childNonce){
 		if(newTree!=null){
 			try {
-				newTree.setRelationship((int)beaconResp.getParentNonce(), (int)beaconResp.getChildNonce());
+				newTree.setRelationship(parentNonce, childNonce);
+				lastBeaconResponseNanos = System.nanoTime();
+				notifyAll();
 			} catch (TreeAlreadyCalculatedException e) {
 				e.printStackTrace();
 			}
@@ -202,14 +402,49 @@ public class Layer3Base {
 	}
 	
 	
+	/**
+	 * Start the setup of a new network tree in a new thread.
+	 * @return The future that is completed with the tree when the setup ends
+	 */
+	public Future<NetworkTree> startNetworkSetup(){
+		NetworkSetupThread setup = new NetworkSetupThread();
+		new Thread(setup, "MeshNet network setup").start();
+		return setup.getCompletion();
+	}
+	
+	
 	/**
 	 * Setup a network tree by sending (and retransmitting if necessary)
 	 * beacons and assignAddress packets.
+	 * 
+	 * It doesn't wait fixed times: the beacon responses are collected until
+	 * none arrives for BEACON_QUIESCENCE_MS, and every node gets its
+	 * assignAddress retransmitted with its own timeout, until the device
+	 * sends the command 0 that makes it assigned.
 	 */
 	public class NetworkSetupThread implements Runnable {
 		
 		public static final int MAX_NUM_ASSIGN_ADDRESS_RETRIES = 10;
 		
+		/** The beacon phase ends when no response arrives for this time */
+		public static final long BEACON_QUIESCENCE_MS = 300;
+		/** Max duration of the beacon phase, even if responses keep arriving */
+		public static final long MAX_BEACON_PHASE_MS = 2000;
+		/** Time to wait for the command 0 after the first assignAddress */
+		public static final long ASSIGN_ADDRESS_TIMEOUT_MS = 100;
+		/** The timeout doubles at every retry, up to this value */
+		public static final long MAX_ASSIGN_ADDRESS_TIMEOUT_MS = 1000;
+		
+		protected final SettableFuture<NetworkTree> completion = new SettableFuture<NetworkTree>();
+		
+		/**
+		 * @return The future that is completed with the tree when the setup
+		 * ends, or with the exception that stopped it
+		 */
+		public Future<NetworkTree> getCompletion(){
+			return completion;
+		}
+		
 		@Override
 		public void run() {
 			try {				
@@ -222,35 +457,160 @@ public class Layer3Base {
 				}
 				int baseNonce = rand.nextInt();
 				// Create a new NetworkTree, and assign it as lastTree
-				synchronized(this){
-					newTree = new NetworkTree(baseNonce);
+				NetworkTree tree = new NetworkTree(baseNonce);
+				synchronized(Layer3Base.this){
+					newTree = tree;
+					lastBeaconResponseNanos = System.nanoTime();
+					beaconJoinRound = 0;
 				}
 				// Send beacons and wait so every device can answer with beacon responses
-				sendBeacon(newTree);
+				sendBeacon(tree, 0);
 				System.out.println("Beacons sent. Waiting for responses");
-				Thread.sleep(2000);
-				// Hopefully I have received all beacon responses, now I assign addresses
-				int retries = MAX_NUM_ASSIGN_ADDRESS_RETRIES;
-				while(retries>0){
-					boolean wasSomebodyUnassigned = sendAssignAddressToAllUnassignedDevices(newTree);
-					if(wasSomebodyUnassigned){
-						System.out.println("Assign address sent, retries left: "+retries);
-						// now I wait a bit while devices are sending me command 0 layer4 packets
-						Thread.sleep(1000);
-						retries--;
-					} else {
-						break;
-					}
-				}
+				waitBeaconResponses();
+				// Now I assign addresses
+				assignAddresses(tree);
 				// Wow, now we should have the network working!!
 				// I set the tree we have generated as the activeTree
-				activeTree = newTree;
+				synchronized(Layer3Base.this){
+					activeTree = tree;
+				}
 				System.out.println("Network setup completed!");
+				completion.set(tree);
+			} catch (Exception e) {
+				e.printStackTrace();
+				completion.setException(e);
+			}
+		}
+		
+		protected void waitBeaconResponses() throws InterruptedException {
+			long start = System.nanoTime();
+			long quiescence = TimeUnit.MILLISECONDS.toNanos(BEACON_QUIESCENCE_MS);
+			long maxPhase = TimeUnit.MILLISECONDS.toNanos(MAX_BEACON_PHASE_MS);
+			synchronized(Layer3Base.this){
+				while(true){
+					long now = System.nanoTime();
+					long quietLeft = quiescence - (now - lastBeaconResponseNanos);
+					long phaseLeft = maxPhase - (now - start);
+					if(quietLeft <= 0 || phaseLeft <= 0){
+						return;
+					}
+					TimeUnit.NANOSECONDS.timedWait(Layer3Base.this, Math.min(quietLeft, phaseLeft));
+				}
+			}
+		}
+		
+		protected void assignAddresses(NetworkTree tree) throws IOException, InterruptedException {
+			HashMap<Node, PendingAssign> pending = new HashMap<Node, PendingAssign>();
+			List<Node> toSend = new ArrayList<Node>();
+			while(true){
+				int events;
+				synchronized(Layer3Base.this){
+					events = assignedNodesEvents;
+				}
+				long now = System.nanoTime();
+				long nextDeadline = Long.MAX_VALUE;
+				toSend.clear();
+				for(Node node : tree.getAssignableNodes()){
+					PendingAssign p = pending.get(node);
+					if(p == null){
+						p = new PendingAssign(now);
+						pending.put(node, p);
+					}
+					if(p.attempts >= MAX_NUM_ASSIGN_ADDRESS_RETRIES){
+						continue; // I give up with this node
+					}
+					if(now - p.deadline >= 0){
+						toSend.add(node);
+						long timeout = Math.min(ASSIGN_ADDRESS_TIMEOUT_MS << p.attempts,
+								MAX_ASSIGN_ADDRESS_TIMEOUT_MS);
+						p.attempts++;
+						p.deadline = now + TimeUnit.MILLISECONDS.toNanos(timeout);
+					}
+					if(p.deadline - now < nextDeadline){
+						nextDeadline = p.deadline - now;
+					}
+				}
+				if(nextDeadline == Long.MAX_VALUE){
+					break; // All nodes are assigned, or I've given up with them
+				}
+				for(Node node : toSend){
+					sendAssignAddress(tree, node);
+				}
+				if(!toSend.isEmpty()){
+					System.out.println("Assign address sent to "+toSend.size()+" nodes");
+				}
+				// Wait until a node becomes assigned, or a timeout expires
+				long waitUntil = now + nextDeadline;
+				synchronized(Layer3Base.this){
+					long left;
+					while(events == assignedNodesEvents && (left = waitUntil - System.nanoTime()) > 0){
+						TimeUnit.NANOSECONDS.timedWait(Layer3Base.this, left);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Start a join round in a new thread.
+	 * @return The future that is completed with the active tree when the
+	 * round ends
+	 */
+	public Future<NetworkTree> startJoinRound(){
+		JoinRoundThread round = new JoinRoundThread();
+		new Thread(round, "MeshNet join round").start();
+		return round.getCompletion();
+	}
+	
+	
+	/**
+	 * Add to the active tree the devices that have been switched on after
+	 * its setup, without building a new tree.
+	 * 
+	 * The beacon of the active tree is sent again with a new join round: the
+	 * devices already in the tree only forward it, and the new ones answer.
+	 * They get the addresses from the spare ranges of their parents, and the
+	 * other devices keep their addresses and their layer4.
+	 */
+	public class JoinRoundThread extends NetworkSetupThread {
+		
+		@Override
+		public void run() {
+			try {
+				NetworkTree tree;
+				int joinRound;
+				synchronized(Layer3Base.this){
+					tree = activeTree;
+					if(tree == null || tree != newTree){
+						throw new IllegalStateException("There isn't an active tree, or a setup is in progress");
+					}
+					beaconJoinRound = beaconJoinRound % Layer3Packet.Beacon.MAX_JOIN_ROUND + 1;
+					joinRound = beaconJoinRound;
+					lastBeaconResponseNanos = System.nanoTime();
+				}
+				sendBeacon(tree, joinRound);
+				waitBeaconResponses();
+				assignAddresses(tree);
+				System.out.println("Join round completed!");
+				completion.set(tree);
 			} catch (Exception e) {
 				e.printStackTrace();
+				completion.setException(e);
 			}
 		}
 	}
 	
 	
-}
\ No newline at end of file
+	/** The assignAddress retransmission state of a node */
+	private static class PendingAssign {
+		private int attempts = 0;
+		/** When the next assignAddress must be sent, in System.nanoTime() */
+		private long deadline;
+		
+		private PendingAssign(long deadline){
+			this.deadline = deadline;
+		}
+	}
+	
+	
+}
@@ -14,42 +14,123 @@ import javax.crypto.spec.SecretKeySpec;
  */
 public class Layer3Packet {
 	
+	// Results of decode
+	public static final int PARSE_OK = 0;
+	/** The buffer doesn't contain any byte */
+	public static final int INVALID_EMPTY = 1;
+	/** The length is not the one of the packet type */
+	public static final int INVALID_LENGTH = 2;
+	/** The type of the packet is not known */
+	public static final int UNKNOWN_TYPE = 3;
+	/** The number of different results that decode can return */
+	public static final int NUM_PARSE_RESULTS = 4;
+	
 	/**
-	 * This build a Layer3Packet of the proper type from a byte array
+	 * Decode the packet contained in the buffer, from position to limit, and
+	 * pass its fields to the method of the handler for its type.
+	 * 
+	 * This doesn't create any object: the fields are read directly from the
+	 * buffer. If the packet is a data packet, the position
+	 * of the buffer is moved to the start of the layer4 packet, and the
+	 * buffer itself is passed to the handler.
+	 * 
+	 * @return PARSE_OK, or the reason why the packet is invalid
 	 */
-	public static Layer3Packet buildFromByteArray(ByteBuffer bytes) throws InvalidPacketException {
+	public static int decode(ByteBuffer bytes, Layer3PacketHandler handler){
 		
-		if(bytes.capacity() == 0){
-			throw new InvalidPacketException("Packet with zero lenght");
+		if(!bytes.hasRemaining()){
+			return INVALID_EMPTY;
 		}
 		
 		bytes.order(ByteOrder.LITTLE_ENDIAN);
-		int firstByte = bytes.get();
-		
-		if(firstByte == DATA_TO_BASE_TYPE){
-			return new DataToBase(bytes);
-		} else if (firstByte == DATA_TO_DEVICE_TYPE){
-			return new DataToDevice(bytes);
-		} else if (firstByte == BEACON_TYPE){
-			return new Beacon(bytes);
-		} else if (firstByte == BEACON_CHILD_RESPONSE_TYPE){
-			return new BeaconChildResponse(bytes);
-		} else if (firstByte == BEACON_PARENT_RESPONSE_TYPE){
-			return new BeaconParentResponse(bytes);
-		} else if (firstByte == ASSIGN_ADDRESS_TYPE){
-			return new AssignAddress(bytes);
-		} else {
-			return new Layer3Packet(bytes); // Unknown packet type
+		int start = bytes.position();
+		int type = bytes.get(start) & TYPE_MASK;
+		int result = checkLength(type, bytes.remaining());
+		if(result != PARSE_OK){
+			return result;
+		}
+		
+		switch(type){
+		case DATA_TO_BASE_TYPE:
+			bytes.position(start+2);
+			handler.onDataToBase(bytes.get(start+1) & 0xff, bytes);
+			break;
+		case DATA_TO_DEVICE_TYPE:
+			bytes.position(start+2);
+			handler.onDataToDevice(bytes.get(start+1) & 0xff, bytes);
+			break;
+		case BEACON_TYPE:
+			handler.onBeacon(bytes.getShort(start+1) & 0xffff, bytes.getInt(start+3));
+			break;
+		case BEACON_CHILD_RESPONSE_TYPE:
+			handler.onBeaconChildResponse(bytes.getInt(start+1), bytes.getInt(start+5));
+			break;
+		case BEACON_PARENT_RESPONSE_TYPE:
+			handler.onBeaconParentResponse(bytes.getInt(start+1), bytes.getInt(start+5),
+					bytes.getInt(start+9));
+			break;
+		case ASSIGN_ADDRESS_TYPE:
+			handler.onAssignAddress(bytes.getInt(start+1), bytes.get(start+5) & 0xff,
+					bytes.get(start+6) & 0xff, bytes.getInt(start+7));
+			break;
+		case DATA_TO_RANGE_TYPE:
+			bytes.position(start+3);
+			handler.onDataToRange(bytes.get(start+1) & 0xff, bytes.get(start+2) & 0xff, bytes);
+			break;
+		}
+		return PARSE_OK;
+	}
+	
+	
+	/**
+	 * Check if the length of a packet is valid for its type
+	 * @param len The length of the packet, including the type byte
+	 * @return PARSE_OK, INVALID_LENGTH or UNKNOWN_TYPE
+	 */
+	private static int checkLength(int type, int len){
+		switch(type){
+		case DATA_TO_BASE_TYPE:
+		case DATA_TO_DEVICE_TYPE:
+			return len >= 2 ? PARSE_OK : INVALID_LENGTH;
+		case BEACON_TYPE:
+			return len == Beacon.PACKET_LEN ? PARSE_OK : INVALID_LENGTH;
+		case BEACON_CHILD_RESPONSE_TYPE:
+			return len == BeaconChildResponse.PACKET_LEN ? PARSE_OK : INVALID_LENGTH;
+		case BEACON_PARENT_RESPONSE_TYPE:
+			return len == BeaconParentResponse.PACKET_LEN ? PARSE_OK : INVALID_LENGTH;
+		case ASSIGN_ADDRESS_TYPE:
+			return len == AssignAddress.PACKET_LEN ? PARSE_OK : INVALID_LENGTH;
+		case DATA_TO_RANGE_TYPE:
+			return len >= 3 ? PARSE_OK : INVALID_LENGTH;
+		default:
+			return UNKNOWN_TYPE;
 		}
 	}
 	
+	public static String getParseResultDescription(int result){
+		switch(result){
+		case PARSE_OK:
+			return "Valid packet";
+		case INVALID_EMPTY:
+			return "Packet with zero lenght";
+		case INVALID_LENGTH:
+			return "Wrong packet lenght";
+		case UNKNOWN_TYPE:
+			return "Unknown packet type";
+		default:
+			return "Unknown parse result";
+		}
+	}
 	
+	/** The type is in the low 4 bits of the first byte, the others are flags */
+	private static final int TYPE_MASK = 0x0F;
 	private static final byte DATA_TO_BASE_TYPE = 0x00;
 	private static final byte DATA_TO_DEVICE_TYPE = 0x01;
 	private static final byte BEACON_TYPE = 0x02;
 	private static final byte BEACON_CHILD_RESPONSE_TYPE = 0x03;
 	private static final byte BEACON_PARENT_RESPONSE_TYPE = 0x04;
 	private static final byte ASSIGN_ADDRESS_TYPE = 0x05;
+	private static final byte DATA_TO_RANGE_TYPE = 0x06;
 	
 	protected final ByteBuffer packet;
 	
@@ -57,9 +138,6 @@ public class Layer3Packet {
 		packet = ByteBuffer.allocate(capacity);
 		packet.order(ByteOrder.LITTLE_ENDIAN);
 	}
-	private Layer3Packet(ByteBuffer src){
-		this.packet=src;
-	}
 	
 	public ByteBuffer getRawBytes(){
 		return packet.duplicate();
@@ -71,15 +149,6 @@ public class Layer3Packet {
 		private final int srcAddr; 
 		private final ByteBuffer data;
 		
-		private DataToBase(ByteBuffer bytes) throws InvalidPacketException{
-			super(bytes);
-			if(bytes.remaining()==0){
-				throw new InvalidPacketException();
-			}
-			this.srcAddr = ((int)bytes.get()) & 0xff;
-			this.data=bytes; // i assume that the rest of the buffer is all data
-		}
-		
 		public DataToBase(int sourceAddress, byte[] data) throws InvalidPacketException{
 			super(2+data.length);
 			if(sourceAddress > 255 || sourceAddress<0){
@@ -108,15 +177,6 @@ public class Layer3Packet {
 		private final int destAddr; 
 		private final ByteBuffer data;
 
-		private DataToDevice(ByteBuffer bytes) throws InvalidPacketException{
-			super(bytes);
-			if(bytes.remaining()==0){
-				throw new InvalidPacketException();
-			}
-			this.destAddr = ((int)bytes.get()) & 0xff;
-			this.data=bytes; // i assume that the rest of the buffer is all data
-		}
-		
 		public DataToDevice(int destinationAddress, byte[] data) throws InvalidPacketException{
 			super(2+data.length);
 			if(destinationAddress > 255 || destinationAddress<0){
@@ -130,6 +190,19 @@ public class Layer3Packet {
 			this.data = packet;
 		}
 		
+		/**
+		 * Write the packet in an array as long as it, like the constructor
+		 * but without creating any object
+		 */
+		public static void write(byte[] out, int destinationAddress, byte[] data) throws InvalidPacketException{
+			if(destinationAddress > 255 || destinationAddress<0 || out.length != 2+data.length){
+				throw new InvalidPacketException();
+			}
+			out[0] = DATA_TO_DEVICE_TYPE;
+			out[1] = (byte)destinationAddress;
+			System.arraycopy(data, 0, out, 2, data.length);
+		}
+		
 		public ByteBuffer getData(){
 			return data;
 		}
@@ -141,25 +214,80 @@ public class Layer3Packet {
 	
 	
 	
+	/**
+	 * A data message to all the devices with the address in a range. Every
+	 * device forwards it only to the children whose range intersects it, so
+	 * it's sent once to every root node that has some of these devices.
+	 */
+	public static class DataToRange extends Layer3Packet{
+
+		private final int startAddr;
+		private final int stopAddr;
+		private final ByteBuffer data;
+
+		/**
+		 * @param startAddr The first address of the range
+		 * @param stopAddr The last address of the range
+		 */
+		public DataToRange(int startAddr, int stopAddr, byte[] data) throws InvalidPacketException{
+			super(3+data.length);
+			if(startAddr > 255 || startAddr < 0 || stopAddr > 255 || stopAddr < startAddr){
+				throw new InvalidPacketException();
+			}
+			packet.put(DATA_TO_RANGE_TYPE);
+			this.startAddr = startAddr;
+			this.stopAddr = stopAddr;
+			packet.put((byte)startAddr);
+			packet.put((byte)stopAddr);
+			packet.put(data);
+			packet.position(3);
+			this.data = packet;
+		}
+		
+		public ByteBuffer getData(){
+			return data;
+		}
+		
+		public int getStartAddress(){
+			return startAddr;
+		}
+		
+		public int getStopAddress(){
+			return stopAddr;
+		}
+	}
+	
+	
+	
 	public static class Beacon extends Layer3Packet{
 		
+		public static final int PACKET_LEN = 7;
+		
+		/**
+		 * The join round is written in the high 4 bits of the type byte.
+		 * A device that has already answered to a beacon with the same
+		 * baseNonce only forwards it, once for every join round, so it
+		 * reaches the new devices that have to join the network.
+		 */
+		public static final int MAX_JOIN_ROUND = 15;
+		
 		private final int networkId;
 		private final long baseNonce;
+		private final int joinRound;
 		
-		private Beacon(ByteBuffer bytes) throws InvalidPacketException {
-			super(bytes);
-			if(bytes.remaining() != 6){
-				throw new InvalidPacketException();
-			}
-			this.networkId = ((int)bytes.getShort()) & 0xffff;
-			this.baseNonce = ((long)bytes.getInt()) & 0xffffffff;
+		public Beacon(int networkId, int baseNonce) throws InvalidPacketException{
+			this(networkId, baseNonce, 0);
 		}
 		
-		public Beacon(int networkId, int baseNonce) throws InvalidPacketException{
-			super(7);
-			packet.put(BEACON_TYPE);
+		public Beacon(int networkId, int baseNonce, int joinRound) throws InvalidPacketException{
+			super(PACKET_LEN);
+			if(joinRound < 0 || joinRound > MAX_JOIN_ROUND){
+				throw new InvalidPacketException();
+			}
+			packet.put((byte)(BEACON_TYPE | (joinRound << 4)));
 			this.networkId=networkId;
 			this.baseNonce=baseNonce;
+			this.joinRound=joinRound;
 			packet.putShort((short)networkId);
 			packet.putInt((int)baseNonce);
 		}
@@ -168,6 +296,10 @@ public class Layer3Packet {
 			return networkId;
 		}
 		
+		public int getJoinRound(){
+			return joinRound;
+		}
+		
 		public long getBaseNonce(){
 			return baseNonce;
 		}	
@@ -181,14 +313,6 @@ public class Layer3Packet {
 		
 		private final long childNonce;
 		
-		private BeaconChildResponse(ByteBuffer bytes) throws InvalidPacketException {
-			super(bytes);
-			if(bytes.remaining() != PACKET_LEN-1){
-				throw new InvalidPacketException();
-			}
-			this.childNonce = bytes.getInt();
-		}
-		
 		public BeaconChildResponse(int childNonce, int baseNonce, int networkKey) throws InvalidPacketException{
 			super(PACKET_LEN);
 			packet.put(BEACON_CHILD_RESPONSE_TYPE);
@@ -202,21 +326,41 @@ public class Layer3Packet {
 		}	
 		
 		public void verifyHmac(int baseNonce, int networkKey) throws InvalidPacketException {
-			int writtenHmac = packet.getInt(PACKET_LEN-4);
-			int generated = calculateHmac(baseNonce, networkKey);
-			if(generated != writtenHmac){
+			if(!isHmacValid(baseNonce, networkKey)){
 				throw new InvalidPacketException();
 			}
 		}
 		
+		public boolean isHmacValid(int baseNonce, int networkKey){
+			int writtenHmac = packet.getInt(PACKET_LEN-4);
+			return calculateHmac(baseNonce, networkKey) == writtenHmac;
+		}
+		
 		private int calculateHmac(int baseNonce, int networkKey){
+			ByteBuffer buf = packet.duplicate();
+			buf.position(0);
+			return calculateHmac(buf, baseNonce, networkKey);
+		}
+		
+		/**
+		 * Check the HMAC of a beaconChildResponse from its fields, without
+		 * the packet object (see {@link Layer3PacketHandler})
+		 */
+		public static boolean isHmacValid(int childNonce, int hmac, int baseNonce, int networkKey){
+			ByteBuffer msg = ByteBuffer.allocate(PACKET_LEN-4);
+			msg.order(ByteOrder.LITTLE_ENDIAN);
+			msg.put(BEACON_CHILD_RESPONSE_TYPE);
+			msg.putInt(childNonce);
+			msg.position(0);
+			return calculateHmac(msg, baseNonce, networkKey) == hmac;
+		}
+		
+		private static int calculateHmac(ByteBuffer msg, int baseNonce, int networkKey){
 			ByteBuffer key = ByteBuffer.allocate(8);
 			key.order(ByteOrder.LITTLE_ENDIAN);
 			key.putInt(baseNonce);
 			key.putInt(networkKey);
-			ByteBuffer buf = packet.duplicate();
-			buf.position(0);
-			return generateHmac(buf, PACKET_LEN-4, key).getInt();
+			return generateHmac(msg, PACKET_LEN-4, key).getInt();
 		}
 	}
 	
@@ -229,15 +373,6 @@ public class Layer3Packet {
 		private final int childNonce;
 		private final int parentNonce;
 		
-		private BeaconParentResponse(ByteBuffer bytes) throws InvalidPacketException {
-			super(bytes);
-			if(bytes.remaining() != PACKET_LEN-1){
-				throw new InvalidPacketException();
-			}
-			this.childNonce = bytes.getInt();
-			this.parentNonce = bytes.getInt();
-		}
-		
 		public BeaconParentResponse(int childNonce, int parentNonce, int baseNonce, int networkKey) throws InvalidPacketException{
 			super(PACKET_LEN);
 			packet.put(BEACON_PARENT_RESPONSE_TYPE);
@@ -257,13 +392,16 @@ public class Layer3Packet {
 		}
 		
 		public void verifyHmac(int baseNonce, int networkKey) throws InvalidPacketException {
-			int writtenHmac = packet.getInt(PACKET_LEN-4);
-			int generated = calculateHmac(baseNonce, networkKey);
-			if(generated != writtenHmac){
+			if(!isHmacValid(baseNonce, networkKey)){
 				throw new InvalidPacketException();
 			}
 		}
 		
+		public boolean isHmacValid(int baseNonce, int networkKey){
+			int writtenHmac = packet.getInt(PACKET_LEN-4);
+			return calculateHmac(baseNonce, networkKey) == writtenHmac;
+		}
+		
 		private int calculateHmac(int baseNonce, int networkKey){
 			ByteBuffer key = ByteBuffer.allocate(8);
 			key.order(ByteOrder.LITTLE_ENDIAN);
@@ -284,16 +422,6 @@ public class Layer3Packet {
 		private final int address;
 		private final int maxRoute;
 		
-		private AssignAddress(ByteBuffer bytes) throws InvalidPacketException {
-			super(bytes);
-			if(bytes.remaining() != PACKET_LEN-1){
-				throw new InvalidPacketException();
-			}
-			this.childNonce = bytes.getInt();
-			this.address = ((int)bytes.get()) & 0xff;
-			this.maxRoute = ((int)bytes.get()) & 0xff;
-		}
-		
 		public AssignAddress(int childNonce, int address, int maxRoute, int baseNonce, int networkKey) {
 			super(PACKET_LEN);
 			packet.put(ASSIGN_ADDRESS_TYPE);
@@ -317,13 +445,16 @@ public class Layer3Packet {
 		}
 		
 		public void verifyHmac(int baseNonce, int networkKey) throws InvalidPacketException {
-			int writtenHmac = packet.getInt(PACKET_LEN-4);
-			int generated = calculateHmac(baseNonce, networkKey);
-			if(generated != writtenHmac){
+			if(!isHmacValid(baseNonce, networkKey)){
 				throw new InvalidPacketException();
 			}
 		}
 		
+		public boolean isHmacValid(int baseNonce, int networkKey){
+			int writtenHmac = packet.getInt(PACKET_LEN-4);
+			return calculateHmac(baseNonce, networkKey) == writtenHmac;
+		}
+		
 		private int calculateHmac(int baseNonce, int networkKey){
 			ByteBuffer key = ByteBuffer.allocate(12);
 			key.order(ByteOrder.LITTLE_ENDIAN);
@@ -0,0 +1,42 @@
+package com.mattibal.meshnet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The interface that must be implemented to receive the packets decoded by
+ * {@link Layer3Packet#decode(ByteBuffer, Layer3PacketHandler)}.
+ * 
+ * There is a method for every packet type, and the fields of the packet are
+ * read directly from the received buffer and passed as arguments, so no
+ * packet object is created. The nonces and HMACs are passed as they are
+ * written in the packet, as 32 bit signed ints.
+ */
+public interface Layer3PacketHandler {
+	
+	/**
+	 * @param payload The received buffer, with the position at the start
+	 * of the layer4 packet. It's valid only until this method returns.
+	 */
+	public void onDataToBase(int srcAddr, ByteBuffer payload);
+	
+	/**
+	 * @param payload The received buffer, with the position at the start
+	 * of the layer4 packet. It's valid only until this method returns.
+	 */
+	public void onDataToDevice(int destAddr, ByteBuffer payload);
+	
+	/**
+	 * @param payload The received buffer, with the position at the start
+	 * of the layer4 packet. It's valid only until this method returns.
+	 */
+	public void onDataToRange(int startAddr, int stopAddr, ByteBuffer payload);
+	
+	public void onBeacon(int networkId, int baseNonce);
+	
+	public void onBeaconChildResponse(int childNonce, int hmac);
+	
+	public void onBeaconParentResponse(int childNonce, int parentNonce, int hmac);
+	
+	public void onAssignAddress(int childNonce, int address, int maxRoute, int hmac);
+	
+}
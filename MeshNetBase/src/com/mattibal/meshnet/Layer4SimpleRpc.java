@@ -1,13 +1,20 @@
 package com.mattibal.meshnet;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.mattibal.meshnet.Device.InexistentCommandException;
-import com.mattibal.meshnet.Layer3Packet.DataToBase;
 
 /**
  * This is a Layer4 that provide a very simple RPC.
@@ -36,6 +43,43 @@ public class Layer4SimpleRpc implements Layer3Base.ILayer4 {
 	private Device device = null;
 	
 	
+	/**
+	 * A request sent with sendCommandRequestAsync has this flag set in the
+	 * command byte, and is followed by a sequence number. The device answers
+	 * with a packet with the same command byte and sequence number, followed
+	 * by the response data.
+	 */
+	public static final int REQUEST_SEQ_FLAG = 0x80;
+	
+	/** Max number of async requests waiting for a response from a device */
+	public static final int MAX_IN_FLIGHT_REQUESTS = 8;
+	
+	/** After this time without a response, an async request fails */
+	public static final long REQUEST_TIMEOUT_MS = 1000;
+	
+	/**
+	 * The buffers used to build the layer4 packets, indexed by data length,
+	 * because the layer3 needs an array as long as the packet.
+	 */
+	private final byte[][] sendBuffers = new byte[Layer3Base.MAX_PACKET_LEN][];
+	
+	/** The async requests waiting for a response, indexed by sequence number */
+	private final PendingRequest[] pendingRequests = new PendingRequest[256];
+	private int nextSequence = 0;
+	private final Semaphore inFlightWindow = new Semaphore(MAX_IN_FLIGHT_REQUESTS);
+	
+	/** Shared by all the layer4, it only completes the requests that timed out */
+	private static final ScheduledExecutorService timeoutTimer =
+			new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "MeshNet RPC timeouts");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	
+	
 	protected Layer4SimpleRpc(NetworkTree.Node node, Layer3Base layer3){
 		this.node = node;
 		this.layer3 = layer3;
@@ -46,11 +90,12 @@ public class Layer4SimpleRpc implements Layer3Base.ILayer4 {
 	 * from the node corresponding with this Layer4SimpleRpc instance
 	 */
 	@Override
-	public void onPacketReceived(DataToBase packet) {
+	public void onPacketReceived(ByteBuffer data) {
 		// Note: the ByteBuffer position must be at the start of the Layer4 packet
-		ByteBuffer data = packet.getData();
 		int command = data.get() & 0xff;
-		if(command == 0){
+		if((command & REQUEST_SEQ_FLAG) != 0){
+			onCommandResponse(command & ~REQUEST_SEQ_FLAG, data);
+		} else if(command == 0){
 			onDeviceInfoCommand(data);
 		} else {
 			if(device != null){
@@ -72,11 +117,155 @@ public class Layer4SimpleRpc implements Layer3Base.ILayer4 {
 	 * @throws IOException when for some reasons the packet MIGHT not been arrived
 	 */
 	public void sendCommandRequest(int command, byte[] data) throws IOException{
-		ByteBuffer buf = ByteBuffer.allocate(data.length+1);
-		buf.order(ByteOrder.LITTLE_ENDIAN); // it's not necessary, but who knows..
-		buf.put((byte) command);
-		buf.put(data);
-		layer3.sendDataToDevice(buf.array(), node);
+		if(data.length >= sendBuffers.length){
+			// Too long for the reused buffers, the layer3 decides what to do with it
+			byte[] packet = new byte[data.length+1];
+			packet[0] = (byte) command;
+			System.arraycopy(data, 0, packet, 1, data.length);
+			layer3.sendDataToDevice(packet, node);
+			return;
+		}
+		synchronized(sendBuffers){
+			// The layer3 copies the packet before returning, so the buffer can be reused
+			byte[] buf = sendBuffers[data.length];
+			if(buf == null){
+				buf = new byte[data.length+1];
+				sendBuffers[data.length] = buf;
+			}
+			buf[0] = (byte) command;
+			System.arraycopy(data, 0, buf, 1, data.length);
+			layer3.sendDataToDevice(buf, node);
+		}
+	}
+	
+	
+	/**
+	 * Send a command to the device, and get a future that is completed with
+	 * the response of the device when it has executed the command.
+	 * 
+	 * If there are already MAX_IN_FLIGHT_REQUESTS requests waiting for a
+	 * response from this device, this blocks until one of them completes.
+	 * If the device doesn't answer in REQUEST_TIMEOUT_MS, the future fails
+	 * with a TimeoutException.
+	 * 
+	 * @throws IOException when for some reasons the packet MIGHT not been arrived
+	 */
+	public PendingRequest sendCommandRequestAsync(int command, byte[] data) throws IOException{
+		if(command <= 0 || command >= REQUEST_SEQ_FLAG){
+			throw new IllegalArgumentException("Invalid command for an async request: "+command);
+		}
+		try {
+			inFlightWindow.acquire();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		final PendingRequest request = new PendingRequest(command);
+		int sequence;
+		synchronized(pendingRequests){
+			// With the window smaller than the sequence numbers, a free one always exists
+			while(pendingRequests[nextSequence] != null){
+				nextSequence = (nextSequence+1) & 0xff;
+			}
+			sequence = nextSequence;
+			nextSequence = (nextSequence+1) & 0xff;
+			pendingRequests[sequence] = request;
+		}
+		final int seq = sequence;
+		request.timeout = timeoutTimer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if(removePendingRequest(seq, request)){
+					request.setException(new TimeoutException("No response to command "+request.command));
+				}
+			}
+		}, REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		
+		byte[] packet = new byte[data.length+2];
+		packet[0] = (byte) (command | REQUEST_SEQ_FLAG);
+		packet[1] = (byte) seq;
+		System.arraycopy(data, 0, packet, 2, data.length);
+		request.sentNanos = System.nanoTime();
+		try {
+			layer3.sendDataToDevice(packet, node);
+		} catch (IOException e) {
+			if(removePendingRequest(seq, request)){
+				request.timeout.cancel(false);
+				request.setException(e);
+			}
+			throw e;
+		}
+		return request;
+	}
+	
+	/**
+	 * @return false if the request was already removed, by the response or
+	 * by the timeout
+	 */
+	private boolean removePendingRequest(int seq, PendingRequest request){
+		synchronized(pendingRequests){
+			if(pendingRequests[seq] != request){
+				return false;
+			}
+			pendingRequests[seq] = null;
+		}
+		inFlightWindow.release();
+		return true;
+	}
+	
+	private void onCommandResponse(int command, ByteBuffer data){
+		if(!data.hasRemaining()){
+			return;
+		}
+		int seq = data.get() & 0xff;
+		PendingRequest request;
+		synchronized(pendingRequests){
+			request = pendingRequests[seq];
+		}
+		if(request == null || request.command != command){
+			return; // Late response of a request that has timed out
+		}
+		if(removePendingRequest(seq, request)){
+			request.timeout.cancel(false);
+			request.roundTripNanos = System.nanoTime() - request.sentNanos;
+			// The data is valid only during onPacketReceived, so I copy it
+			ByteBuffer response = ByteBuffer.allocate(data.remaining());
+			response.put(data);
+			response.flip();
+			response.order(ByteOrder.LITTLE_ENDIAN);
+			request.set(response);
+		}
+	}
+	
+	/**
+	 * An async request waiting for the response of the device
+	 */
+	public static class PendingRequest extends SettableFuture<ByteBuffer> {
+		
+		private final int command;
+		private volatile long sentNanos;
+		private volatile long roundTripNanos = -1;
+		private volatile ScheduledFuture<?> timeout;
+		
+		private PendingRequest(int command){
+			this.command = command;
+		}
+		
+		/**
+		 * @return The time between the send of the request and the arrival
+		 * of the response, or -1 if the response is still not arrived
+		 */
+		public long getRoundTripNanos(){
+			return roundTripNanos;
+		}
+	}
+	
+	
+	NetworkTree.Node getNode(){
+		return node;
+	}
+	
+	Layer3Base getLayer3(){
+		return layer3;
 	}
 	
 	
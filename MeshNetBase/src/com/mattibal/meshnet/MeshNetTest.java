@@ -43,10 +43,7 @@ public class MeshNetTest {
 			
 			SerialRXTXComm serial = new SerialRXTXComm(portId, base);
 			Thread.sleep(4000);
-			Layer3Base.NetworkSetupThread setup = base.new NetworkSetupThread();
-			Thread setupThread = new Thread(setup);
-			setupThread.start();
-			setupThread.join();
+			base.startNetworkSetup().get();
 			// Alè, la rete è pronta, adesso posso giocare con i device
 			
 			Device device = Device.getDeviceFromUniqueId(384932);
@@ -60,6 +57,8 @@ public class MeshNetTest {
 				}
 			} else if(device!=null && device instanceof Led1Analog2Device){
 				Led1Analog2Device ledDev = (Led1Analog2Device) device;
+				// Many small frames in a burst, better to merge them in few writes
+				serial.setWriteCoalescing(true);
 				for(int a=0; a<50; a++){
 					for(int i=0; i<255; i+=2){
 						ledDev.setLedPwmState(ledTable8bit[i]);
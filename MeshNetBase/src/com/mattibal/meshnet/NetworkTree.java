@@ -1,23 +1,43 @@
 package com.mattibal.meshnet;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * This class represent the tree of the devices "connected" with a base.
  * 
- * The relationships of an instance of this tree can't be modified or deleted,
- * they can only be added. If you need to modify a relationship, you have to
- * create a new instance of this class.
+ * When the addresses are calculated, every node gets some spare addresses at
+ * the end of its range. A node that joins the tree after that gets its
+ * address from the spare range of its parent, and a subtree that leaves
+ * can be pruned, without changing the addresses of the other nodes.
+ * If the structure changes more than this, you have to create a new
+ * instance of this class.
  */
 public class NetworkTree {
 
 	private HashSet<RootNode> rootNodes = new HashSet<RootNode>();
 	
-	/** When this will be set to true, it will not be possible anymore to add nodes */
+	/** When this will be set to true, new nodes can only join in the spare ranges */
 	private boolean addrCalculationDone = false;
 	
+	/**
+	 * The number of addresses reserved at the end of the range of every node,
+	 * for the nodes that will join later as its children. If there aren't
+	 * enough addresses for them, fewer are reserved, see
+	 * {@link #getSpareAddressesPerNode()}.
+	 */
+	public static final int SPARE_ADDRESSES_PER_NODE = 2;
+	
+	/** The spare addresses that every node really got */
+	private int spareAddresses = SPARE_ADDRESSES_PER_NODE;
+	/** While calculating the addresses, the nodes that still get one more spare address */
+	private int extraSpareLeft = 0;
+	
+	/** The first address after the ranges of the root nodes */
+	private int nextFreeRootAddr = -1;
+	
 	protected final int baseNonce;
 	
 	public NetworkTree(int baseNonce){
@@ -25,26 +45,42 @@ public class NetworkTree {
 	}
 
 	
+	/**
+	 * The number of addresses of a network, they must fit in a byte
+	 */
+	public static final int NUM_ADDRESSES = 256;
+	
+	/**
+	 * The first hop to every address, indexed by address. This is built
+	 * when the addresses are calculated, and it's never modified after:
+	 * when a root node joins or is pruned it's replaced by a modified copy,
+	 * so it can be read without holding the lock of the tree.
+	 */
+	private volatile RootNode[] routingTable = null;
+	
 	/**
 	 * Get the root node that is the first route for the given address.
 	 * @return null if the given address is not of my network
 	 */
-	public synchronized RootNode getRouteToNode(int nodeAddress){
-		for(RootNode node: rootNodes){
-			if(node.getAddress() <= nodeAddress && node.getMaxRoute() >= nodeAddress){
-				return node;
-			}
+	public RootNode getRouteToNode(int nodeAddress){
+		RootNode[] table = routingTable;
+		if(table == null || nodeAddress < 0 || nodeAddress >= NUM_ADDRESSES){
+			return null;
 		}
-		return null;
+		return table[nodeAddress];
 	}
 	
+	/**
+	 * @throws TreeAlreadyCalculatedException If the node is joining after
+	 * the address calculation, and there isn't a free address range for it
+	 */
 	public synchronized void setRootNode(int childNonce, Layer3Base.ILayer2 interf, int macAddress) throws TreeAlreadyCalculatedException, InconsistentTreeStructureException{
 		Node n = childNonceToNodes.get(childNonce);
 		if(n == null){
+			RootNode rootNode = new RootNode(childNonce, interf, macAddress);
 			if(addrCalculationDone){
-				throw new TreeAlreadyCalculatedException();
+				joinRootNode(rootNode);
 			}
-			RootNode rootNode = new RootNode(childNonce, interf, macAddress);
 			rootNodes.add(rootNode);
 			childNonceToNodes.put(childNonce, rootNode);
 		} else {
@@ -59,27 +95,92 @@ public class NetworkTree {
 		}
 	}
 	
+	/**
+	 * @throws TreeAlreadyCalculatedException If the child is joining after
+	 * the address calculation, and its parent doesn't have spare addresses,
+	 * or it's already in the tree under another parent
+	 */
 	public synchronized void setRelationship(int parentNonce, int childNonce) throws TreeAlreadyCalculatedException{
 		Node parent = getNodeFromNonce(parentNonce);
 		Node child = getNodeFromNonce(childNonce);
-		if(addrCalculationDone && !parent.children.contains(child)){
+		if(parent.children.contains(child)){
+			return;
+		}
+		if(addrCalculationDone && (child.address >= 0 || child.parent != null)){
+			// The child is already in the tree under another parent
 			throw new TreeAlreadyCalculatedException();
 		}
+		if(addrCalculationDone && parent.address >= 0){
+			// The parent already has an address, so the child takes it from its spare range.
+			// If instead the parent is joining too, the child will get an address with it.
+			Node[] addrTable = addressToNode.clone();
+			parent.allocateJoinedChild(child, addrTable);
+			addressToNode = addrTable;
+		}
 		parent.addChild(child);
 	}
 	
+	/**
+	 * Give to a root node joined after the address calculation a range after
+	 * the ones of the other root nodes
+	 */
+	private void joinRootNode(RootNode node) throws TreeAlreadyCalculatedException{
+		int free = NUM_ADDRESSES - nextFreeRootAddr;
+		if(free <= 0){
+			throw new TreeAlreadyCalculatedException();
+		}
+		Node[] addrTable = addressToNode.clone();
+		RootNode[] routes = routingTable.clone();
+		Node n = node;
+		n.setJoinedRange(nextFreeRootAddr, Math.min(1+SPARE_ADDRESSES_PER_NODE, free), addrTable);
+		nextFreeRootAddr = n.maxRoute+1;
+		for(int addr = n.address; addr <= n.maxRoute; addr++){
+			routes[addr] = node;
+		}
+		addressToNode = addrTable;
+		routingTable = routes;
+	}
+	
+	/**
+	 * Remove a node and all its descendants from the tree, for example
+	 * because the devices has been switched off. The other nodes keep their
+	 * addresses and their layer4.
+	 * 
+	 * The addresses of the removed nodes are not given to nodes that will
+	 * join later, because the devices that routed them may still have a
+	 * route to the removed ones.
+	 */
+	public synchronized void pruneNode(Node node){
+		if(childNonceToNodes.get(node.childNonce) != node){
+			return; // Already removed
+		}
+		if(node.parent != null){
+			node.parent.children.remove(node);
+		}
+		if(node instanceof RootNode){
+			rootNodes.remove(node);
+		}
+		Node[] addrTable = addressToNode != null ? addressToNode.clone() : null;
+		node.removeSubtree(addrTable);
+		if(addrTable != null){
+			addressToNode = addrTable;
+		}
+		if(node instanceof RootNode && routingTable != null && node.address >= 0){
+			RootNode[] routes = routingTable.clone();
+			int stop = Math.min(node.maxRoute, NUM_ADDRESSES-1);
+			for(int addr = node.address; addr <= stop; addr++){
+				routes[addr] = null;
+			}
+			routingTable = routes;
+		}
+	}
+	
 	/**
 	 * Gets the next node that need to receive the "assignAddress" packet
 	 * @return null if all nodes has been assigned
 	 */
 	public synchronized Node getNextUnassignedNode(){
-		if(!addrCalculationDone){
-			int endAddr = 0;
-			for(Node node : rootNodes){
-				endAddr = node.calculateAddrMaxRoute(endAddr+1);
-			}
-			addrCalculationDone = true;
-		}
+		calculateAddresses();
 		Iterator<RootNode> it = rootNodes.iterator();
 		Node unassigned = null;
 		while(unassigned==null && it.hasNext()){
@@ -88,27 +189,206 @@ public class NetworkTree {
 		return unassigned;
 	}
 	
+	/**
+	 * Gets all the unassigned nodes that can receive the "assignAddress"
+	 * packet now. A device can route an assignAddress to a child only after
+	 * it has forwarded the one of the child itself, so a node is returned
+	 * only if it is a root node, or if its parent is assigned.
+	 * @return An empty list if all nodes has been assigned
+	 */
+	public synchronized List<Node> getAssignableNodes(){
+		calculateAddresses();
+		List<Node> assignable = new ArrayList<Node>();
+		for(RootNode node : rootNodes){
+			node.collectAssignable(assignable);
+		}
+		return assignable;
+	}
+	
+	private void calculateAddresses(){
+		if(!addrCalculationDone){
+			// Without spare addresses the nodes get the addresses from 1 to numNodes
+			int numNodes = calculateAddresses(new Node[NUM_ADDRESSES], 0);
+			int free = Math.max(0, NUM_ADDRESSES-1 - numNodes);
+			int spare = SPARE_ADDRESSES_PER_NODE;
+			if(free < numNodes*SPARE_ADDRESSES_PER_NODE){
+				// Every node gets fewer spare addresses, and the ones left are
+				// given one each to the nodes whose range is calculated first
+				spare = free / numNodes;
+				extraSpareLeft = free - spare*numNodes;
+				System.out.println("Too many nodes for "+SPARE_ADDRESSES_PER_NODE+" spare addresses each: "
+						+spare+" per node, and one more for "+extraSpareLeft+" nodes");
+			}
+			Node[] addrTable = new Node[NUM_ADDRESSES];
+			int endAddr = calculateAddresses(addrTable, spare);
+			extraSpareLeft = 0;
+			spareAddresses = spare;
+			nextFreeRootAddr = endAddr+1;
+			addressToNode = addrTable;
+			routingTable = buildRoutingTable();
+			addrCalculationDone = true;
+		}
+	}
+	
+	
+	/**
+	 * @return The number of spare addresses reserved at the end of the range
+	 * of every node when the addresses were calculated. It's less than
+	 * SPARE_ADDRESSES_PER_NODE if the network is too big for them, and in
+	 * this case some nodes can have one more.
+	 */
+	public synchronized int getSpareAddressesPerNode(){
+		return spareAddresses;
+	}
+	
+	private int calculateAddresses(Node[] addrTable, int spare){
+		int endAddr = 0;
+		for(Node node : rootNodes){
+			endAddr = node.calculateAddrMaxRoute(endAddr+1, addrTable, spare);
+		}
+		return endAddr;
+	}
+	
+	/**
+	 * Every root node routes a contiguous range of addresses, from its
+	 * address to its maxRoute, so the first hop of each address is
+	 * precalculated here.
+	 */
+	private RootNode[] buildRoutingTable(){
+		RootNode[] table = new RootNode[NUM_ADDRESSES];
+		for(RootNode node : rootNodes){
+			int stop = Math.min(node.getMaxRoute(), NUM_ADDRESSES-1);
+			for(int addr = node.getAddress(); addr <= stop; addr++){
+				table[addr] = node;
+			}
+		}
+		return table;
+	}
+	
 	
-	/** The Integer is childNonce of the Node */
-	private HashMap<Integer,Node> childNonceToNodes = new HashMap<Integer,Node>();
+	/** The key is childNonce of the Node */
+	private final NonceMap childNonceToNodes = new NonceMap();
 	
-	private Node getNodeFromNonce(int nonce) throws TreeAlreadyCalculatedException{
+	private Node getNodeFromNonce(int nonce){
 		Node n = childNonceToNodes.get(nonce);
 		if(n==null){
-			if(addrCalculationDone){
-				throw new TreeAlreadyCalculatedException();
-			}
 			n = new Node(nonce);
 			childNonceToNodes.put(nonce, n);
 		}
 		return n;
 	}
 	
-	/** The Integer is the address of the node */
-	private HashMap<Integer,Node> addressToNode = new HashMap<Integer,Node>();
+	/**
+	 * The nodes indexed by address.
+	 * This is built when the addresses are calculated and never modified
+	 * after: when a node joins or is pruned it's replaced by a modified
+	 * copy, so it can be read without holding the lock of the tree.
+	 */
+	private volatile Node[] addressToNode = null;
 	
+	/**
+	 * @return null if there isn't a node with this address
+	 */
 	public Node getNodeFromAddress(int address){
-		return addressToNode.get(address);
+		Node[] table = addressToNode;
+		if(table == null || address < 0 || address >= NUM_ADDRESSES){
+			return null;
+		}
+		return table[address];
+	}
+	
+	
+	/**
+	 * A map from childNonce to Node, with open addressing and linear probing
+	 * on primitive arrays, so nonces are never boxed.
+	 * It's accessed only while holding the lock of the tree.
+	 */
+	private static final class NonceMap {
+		
+		private int[] keys = new int[16];
+		private Node[] values = new Node[16];
+		private int size = 0;
+		
+		public Node get(int nonce){
+			int mask = keys.length-1;
+			for(int i = hash(nonce) & mask; values[i] != null; i = (i+1) & mask){
+				if(keys[i] == nonce){
+					return values[i];
+				}
+			}
+			return null;
+		}
+		
+		public void put(int nonce, Node node){
+			int mask = keys.length-1;
+			int i = hash(nonce) & mask;
+			while(values[i] != null){
+				if(keys[i] == nonce){
+					values[i] = node;
+					return;
+				}
+				i = (i+1) & mask;
+			}
+			keys[i] = nonce;
+			values[i] = node;
+			size++;
+			if(size*2 > keys.length){
+				resize();
+			}
+		}
+		
+		public void remove(int nonce){
+			int mask = keys.length-1;
+			int i = hash(nonce) & mask;
+			while(values[i] != null && keys[i] != nonce){
+				i = (i+1) & mask;
+			}
+			if(values[i] == null){
+				return;
+			}
+			values[i] = null;
+			size--;
+			// Move back the following entries of the cluster that would not be found anymore
+			int j = i;
+			while(true){
+				j = (j+1) & mask;
+				if(values[j] == null){
+					return;
+				}
+				int k = hash(keys[j]) & mask;
+				boolean reachable = (i <= j) ? (i < k && k <= j) : (i < k || k <= j);
+				if(!reachable){
+					keys[i] = keys[j];
+					values[i] = values[j];
+					values[j] = null;
+					i = j;
+				}
+			}
+		}
+		
+		private void resize(){
+			int[] oldKeys = keys;
+			Node[] oldValues = values;
+			keys = new int[oldKeys.length*2];
+			values = new Node[oldKeys.length*2];
+			int mask = keys.length-1;
+			for(int j=0; j<oldKeys.length; j++){
+				if(oldValues[j] != null){
+					int i = hash(oldKeys[j]) & mask;
+					while(values[i] != null){
+						i = (i+1) & mask;
+					}
+					keys[i] = oldKeys[j];
+					values[i] = oldValues[j];
+				}
+			}
+		}
+		
+		private static int hash(int nonce){
+			// Nonces are random, but the ones chosen by a bad firmware might not be
+			int h = nonce * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
 	}
 	
 	
@@ -119,9 +399,12 @@ public class NetworkTree {
 		
 		private int childNonce;
 		private HashSet<Node> children = new HashSet<Node>();
+		private Node parent = null;
 		
 		private int address = -1;
 		private int maxRoute = -1;
+		/** The first address of my range not used by me or my children */
+		private int nextFreeAddr = -1;
 		
 		private Layer3Base.ILayer4 layer4 = null;
 		
@@ -131,23 +414,79 @@ public class NetworkTree {
 		
 		private void addChild(Node child){
 			children.add(child);
+			child.parent = this;
 		}
 		
 		/**
 		 * Recursively calculate the address and maxRoute fields of this
 		 * node and all his descendants.
 		 * @param startAddr The start of the address range allocated to this node and his descendants
+		 * @param addrTable The address table where this node and his descendants are put
+		 * @param spare The number of addresses to reserve at the end of the range of every node,
+		 * one more while extraSpareLeft lasts
 		 * @return The last (stop) address allocated to a descendant of this node
 		 */
-		private int calculateAddrMaxRoute(int startAddr){
+		private int calculateAddrMaxRoute(int startAddr, Node[] addrTable, int spare){
 			this.address = startAddr;
-			addressToNode.put(startAddr, this);
+			if(startAddr < addrTable.length){
+				addrTable[startAddr] = this;
+			}
 			int stopAddr = startAddr;
 			for(Node child: children){
-				stopAddr = child.calculateAddrMaxRoute(stopAddr+1);
+				stopAddr = child.calculateAddrMaxRoute(stopAddr+1, addrTable, spare);
+			}
+			nextFreeAddr = stopAddr+1;
+			maxRoute = stopAddr+spare;
+			if(extraSpareLeft > 0){
+				extraSpareLeft--;
+				maxRoute++;
+			}
+			return maxRoute;
+		}
+		
+		/**
+		 * Give to a child that joins after the address calculation a range
+		 * taken from my spare addresses
+		 */
+		private void allocateJoinedChild(Node child, Node[] addrTable) throws TreeAlreadyCalculatedException{
+			int free = maxRoute - nextFreeAddr + 1;
+			if(free <= 0){
+				throw new TreeAlreadyCalculatedException();
+			}
+			child.setJoinedRange(nextFreeAddr, Math.min(1+SPARE_ADDRESSES_PER_NODE, free), addrTable);
+			nextFreeAddr = child.maxRoute+1;
+		}
+		
+		/**
+		 * Set the range of a node that joins after the address calculation,
+		 * and give an address to its children that joined before it.
+		 * @param size The number of addresses of the range
+		 */
+		private void setJoinedRange(int startAddr, int size, Node[] addrTable) throws TreeAlreadyCalculatedException{
+			address = startAddr;
+			maxRoute = startAddr+size-1;
+			nextFreeAddr = startAddr+1;
+			addrTable[startAddr] = this;
+			for(Node child: children){
+				if(child.address < 0){
+					allocateJoinedChild(child, addrTable);
+				}
+			}
+		}
+		
+		/**
+		 * Recursively remove me and my descendants from the nonce map and
+		 * from the address table
+		 */
+		private void removeSubtree(Node[] addrTable){
+			childNonceToNodes.remove(childNonce);
+			if(addrTable != null && address >= 0 && address < addrTable.length
+					&& addrTable[address] == this){
+				addrTable[address] = null;
+			}
+			for(Node child: children){
+				child.removeSubtree(addrTable);
 			}
-			maxRoute = stopAddr;
-			return stopAddr;
 		}
 		
 		/**
@@ -167,6 +506,22 @@ public class NetworkTree {
 			return unassigned;
 		}
 		
+		/**
+		 * Add myself to the list if I'm unassigned, otherwise recursively
+		 * do the same with my children.
+		 */
+		protected synchronized void collectAssignable(List<Node> assignable){
+			if(layer4 == null){
+				if(address >= 0){
+					assignable.add(this);
+				}
+				return;
+			}
+			for(Node child: children){
+				child.collectAssignable(assignable);
+			}
+		}
+		
 		/**
 		 * Layer3 needs this childNonce to calculate HMAC of messages for
 		 * this node of this network tree instance.
@@ -197,6 +552,10 @@ public class NetworkTree {
 			this.layer4 = layer4;
 		}
 		
+		public NetworkTree getTree(){
+			return NetworkTree.this;
+		}
+		
 		public RootNode getRouteToMyself(){
 			return NetworkTree.this.getRouteToNode(this.getAddress());
 		}
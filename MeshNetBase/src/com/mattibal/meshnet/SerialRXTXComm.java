@@ -9,6 +9,7 @@ import gnu.io.UnsupportedCommOperationException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.TooManyListenersException;
 
@@ -21,6 +22,9 @@ public class SerialRXTXComm{
 	
 	public static final int TIME_OUT = 2000;
 	
+	/** The max number of bytes waiting to be written when coalescing is enabled */
+	public static final int TX_QUEUE_SIZE = 1024;
+	
 	protected InputStream inStream;
 	protected OutputStream outStream;
 	
@@ -28,6 +32,9 @@ public class SerialRXTXComm{
 	
 	protected Layer2Serial layer2;
 	
+	/** If not null, the bytes are transmitted by this thread, see setWriteCoalescing */
+	private volatile SerialTransmitter transmitter = null;
+	
 	
 	public SerialRXTXComm(CommPortIdentifier portIdentifier, Layer3Base layer3) throws NoSuchPortException, PortInUseException, UnsupportedCommOperationException, IOException, TooManyListenersException{
 
@@ -84,9 +91,143 @@ public class SerialRXTXComm{
 	 * @throws IOException 
 	 */
 	public void transmitByte(byte data) throws IOException{
-		outStream.write(data);
-		//System.out.print(" tx:"+(int)data);
+		transmitBytes(new byte[]{data}, 0, 1);
+	}
+	
+	
+	/**
+	 * Send via serial port some bytes, with a single write if coalescing is
+	 * disabled, or by queuing them in the transmitter thread if it's enabled.
+	 * 
+	 * The bytes of a call are never interleaved with the ones of another call.
+	 */
+	public void transmitBytes(byte[] data, int offset, int len) throws IOException{
+		SerialTransmitter tx = transmitter;
+		if(tx != null){
+			if(tx.enqueue(data, offset, len)){
+				return;
+			}
+			// Coalescing has just been disabled: write after the queued bytes
+			try {
+				tx.join();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+		synchronized(outStream){
+			outStream.write(data, offset, len);
+		}
+	}
+	
+	
+	/**
+	 * When write coalescing is enabled, transmitBytes only queue the bytes,
+	 * and a transmitter thread writes them. While the thread is busy writing,
+	 * the frames sent in the meantime are accumulated and then written all
+	 * together with a single write.
+	 * This is useful when many small frames are sent in a burst.
+	 * 
+	 * Disabling it waits until the queued bytes have been written, so they
+	 * are never written after the ones sent directly.
+	 */
+	public synchronized void setWriteCoalescing(boolean enabled){
+		if(enabled && transmitter == null){
+			transmitter = new SerialTransmitter();
+			transmitter.start();
+		} else if(!enabled && transmitter != null){
+			SerialTransmitter tx = transmitter;
+			transmitter = null;
+			tx.shutdown();
+			try {
+				tx.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	
+	private class SerialTransmitter extends Thread {
+		
+		// Double buffering: the senders fill "pending" while "writing" is written
+		private byte[] pending = new byte[TX_QUEUE_SIZE];
+		private byte[] writing = new byte[TX_QUEUE_SIZE];
+		private int pendingLen = 0;
+		
+		private boolean stopRequested = false;
+		private IOException writeError = null;
+		
+		public SerialTransmitter(){
+			super("MeshNet serial transmitter");
+			setDaemon(true);
+		}
+		
+		/**
+		 * @return false if the transmitter is stopping, so the bytes haven't
+		 * been queued and they must be written directly
+		 */
+		public synchronized boolean enqueue(byte[] data, int offset, int len) throws IOException{
+			if(len > TX_QUEUE_SIZE){
+				throw new IOException("Too many bytes to transmit at once");
+			}
+			try {
+				while(pendingLen+len > pending.length && writeError == null && !stopRequested){
+					wait();
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			if(writeError != null){
+				throw writeError;
+			}
+			if(stopRequested){
+				return false;
+			}
+			System.arraycopy(data, offset, pending, pendingLen, len);
+			pendingLen += len;
+			notifyAll();
+			return true;
+		}
+		
+		public synchronized void shutdown(){
+			stopRequested = true;
+			notifyAll();
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while(true){
+					byte[] toWrite;
+					int len;
+					synchronized(this){
+						while(pendingLen == 0 && !stopRequested){
+							wait();
+						}
+						if(pendingLen == 0){
+							return; // stop requested and everything has been written
+						}
+						toWrite = pending;
+						len = pendingLen;
+						pending = writing;
+						pendingLen = 0;
+						writing = toWrite;
+						notifyAll();
+					}
+					synchronized(outStream){
+						outStream.write(toWrite, 0, len);
+					}
+				}
+			} catch (InterruptedException e) {
+			} catch (IOException e) {
+				e.printStackTrace();
+				synchronized(this){
+					writeError = e;
+					notifyAll();
+				}
+			}
+		}
 	}
 	
 
-}
\ No newline at end of file
+}
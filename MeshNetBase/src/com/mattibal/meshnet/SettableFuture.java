@@ -0,0 +1,91 @@
+package com.mattibal.meshnet;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A Future that is completed by calling set() or setException(), from the
+ * thread that produces the result.
+ *
+ * It can't be cancelled: the operation goes on anyway, so cancel() always
+ * returns false.
+ */
+public class SettableFuture<V> implements Future<V> {
+
+	private boolean done = false;
+	private V value = null;
+	private Throwable exception = null;
+
+	/**
+	 * @return false if this future was already completed
+	 */
+	public synchronized boolean set(V value){
+		if(done){
+			return false;
+		}
+		this.value = value;
+		done = true;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * @return false if this future was already completed
+	 */
+	public synchronized boolean setException(Throwable exception){
+		if(done){
+			return false;
+		}
+		this.exception = exception;
+		done = true;
+		notifyAll();
+		return true;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	@Override
+	public synchronized V get() throws InterruptedException, ExecutionException {
+		while(!done){
+			wait();
+		}
+		return getResult();
+	}
+
+	@Override
+	public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while(!done){
+			long left = deadline - System.nanoTime();
+			if(left <= 0){
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return getResult();
+	}
+
+	private V getResult() throws ExecutionException {
+		if(exception != null){
+			throw new ExecutionException(exception);
+		}
+		return value;
+	}
+
+}
@@ -4,11 +4,12 @@ import java.io.IOException;
 
 import com.mattibal.meshnet.Device;
 
+@Device.CoalescibleCommands({Led1Analog2Device.SET_LED_PWM_STATE_COMMAND})
 public class Led1Analog2Device extends Device {
 	
 	public static final int DEVICE_TYPE = 123;
 	
-	private static final int SET_LED_PWM_STATE_COMMAND = 2;
+	public static final int SET_LED_PWM_STATE_COMMAND = 2;
 
 	public Led1Analog2Device(int uniqueDeviceId) {
 		super(uniqueDeviceId, DEVICE_TYPE);
@@ -1,16 +1,13 @@
 package com.mattibal.meshnet.devices;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map.Entry;
-import java.util.Set;
 
 import com.mattibal.meshnet.Device;
+import com.mattibal.meshnet.effects.PwmOutput;
 import com.mattibal.meshnet.utils.color.AbsoluteColor;
 import com.mattibal.meshnet.utils.color.Chromaticity;
+import com.mattibal.meshnet.utils.color.ColorLookupTable;
 import com.mattibal.meshnet.utils.color.LightSource;
 import com.mattibal.meshnet.utils.color.MulticolorSourceCalculator;
 import com.mattibal.meshnet.utils.color.gui.ChromaticityJFrame;
@@ -26,20 +23,44 @@ import com.mattibal.meshnet.utils.color.gui.PlanckianLocusJFrame;
  * 
  * The circuit has also a temperature sensor and a light sensor.
  */
-public class LedLamp1Device extends Device {
+@Device.CoalescibleCommands({LedLamp1Device.SET_RGBAW_LEDS_PWM_COMMAND})
+public class LedLamp1Device extends Device implements PwmOutput {
 
 	public static final int DEVICE_TYPE = 91235; 
 	
-	private static final int SET_RGBAW_LEDS_PWM_COMMAND = 1;
+	public static final int SET_RGBAW_LEDS_PWM_COMMAND = 1;
 	
 	
+	// The PWM channels of the leds, in the order of the command payload
+	// TODO wrong order in my prototype wirings!! (blue and green are swapped)
+	private static final int RED_CHANNEL = 0;
+	private static final int BLUE_CHANNEL = 1;
+	private static final int GREEN_CHANNEL = 2;
+	private static final int AMBER_CHANNEL = 3;
+	private static final int WHITE_CHANNEL = 4;
+	public static final int NUM_CHANNELS = 5;
+	
+	/** Where the color lookup tables are cached between runs */
+	private static final File LOOKUP_TABLE_CACHE_DIR =
+			new File(System.getProperty("java.io.tmpdir"), "meshnet");
+	
 	private MulticolorSourceCalculator colorCalc;
+	/** If not null, it is used instead of colorCalc */
+	private ColorLookupTable colorLut = null;
 	private LightSource red;
 	private LightSource green;
 	private LightSource blue;
 	private LightSource amber;
 	private LightSource white;
 	
+	/** The PWM channel of every source, indexed like the sources of colorCalc */
+	private int[] sourceChannels;
+	
+	// Buffers reused by every setColor, guarded by the lock of this device
+	private double[] sourceLumi;
+	private final int[] channelPwm = new int[NUM_CHANNELS];
+	private final byte[] pwmPayload = new byte[NUM_CHANNELS];
+	
 	private ChromaticityJFrame frame;
 	
 	
@@ -53,46 +74,94 @@ public class LedLamp1Device extends Device {
 	 * Set the color that the LED lamp should produce.
 	 */
 	public synchronized void setColor(AbsoluteColor color) throws IOException{
-		
-		HashMap<LightSource, Double> map = colorCalc.getSourceLumiForColor(color);
-		Set<Entry<LightSource, Double>> entries = map.entrySet();
-		int r=0, g=0, b=0, a=0, w=0;
-		for(Entry<LightSource, Double> entry : entries){
-			LightSource source = entry.getKey();
-			double lumi = entry.getValue();
-			int pwm = source.getPwmValue(lumi, 255);
-			if(source==red){
-				r = pwm;
-			} else if(source==green){
-				g = pwm;
-			} else if(source==blue){
-				b = pwm;
-			} else if(source==amber){
-				a = pwm;
-			} else if(source==white){
-				w = pwm;
-			}
+		setColor(color.getx(), color.gety(), color.getYlumi());
+	}
+	
+	/**
+	 * Like {@link #setColor(AbsoluteColor)}, but without allocating anything
+	 */
+	@Override
+	public synchronized void setColor(double x, double y, double Ylumi) throws IOException{
+		getPwmForColor(x, y, Ylumi, channelPwm);
+		sendPwmState(channelPwm);
+	}
+	
+	/**
+	 * Calculates the PWM duty cycle of every led for a color, without
+	 * sending it. It's the same for all the lamps of this type.
+	 * 
+	 * @param outPwm Where the duty cycles are written, indexed by channel
+	 * like the payload of {@link #SET_RGBAW_LEDS_PWM_COMMAND}
+	 */
+	@Override
+	public synchronized void getPwmForColor(double x, double y, double Ylumi, int[] outPwm){
+		if(colorLut != null){
+			colorLut.getSourceLumiForColor(x, y, Ylumi, sourceLumi);
+		} else {
+			colorCalc.getSourceLumiForColor(x, y, Ylumi, sourceLumi);
+		}
+		for(int i=0; i<sourceChannels.length; i++){
+			outPwm[sourceChannels[i]] = colorCalc.getSource(i).getPwmValue(sourceLumi[i], 255);
 		}
-		setLedPwmState(r, b, g, a, w); // TODO wrong order in my prototype wirings!! 
-		//setLedPwmState(255, 255, 255, 255, 255);
 	}
 	
 	
+	/**
+	 * Enables or disables the lookup table mode, where setColor interpolates
+	 * the luminances of the leds from a precomputed table instead of
+	 * calculating them. It's faster, but a bit less accurate.
+	 * 
+	 * The first time the table is built, that takes a while, and then it's
+	 * loaded from the cache on disk.
+	 */
+	public synchronized void setLookupTableEnabled(boolean enabled){
+		if(!enabled){
+			colorLut = null;
+		} else if(colorLut == null){
+			colorLut = ColorLookupTable.getCached(colorCalc, ColorLookupTable.DEFAULT_GRID_SIZE_XY,
+					ColorLookupTable.DEFAULT_GRID_SIZE_LUMI, LOOKUP_TABLE_CACHE_DIR);
+		}
+	}
+	
 	
 	/**
-	 * Sets the PWM duty cycle of each led (in the 0-254 range)
+	 * Sets the PWM duty cycle of each led (in the 0-254 range). The values
+	 * are sent in the order of the arguments, without the swap of the
+	 * channels of my prototype that setColor does.
 	 */
 	public synchronized void setLedPwmState(int red, int green, int blue,
 				int amber, int white) throws IOException{
-		System.out.println("Setting pwm state: r="+red+" g="+green+" b="+blue+" a="+amber+" w="+white);
-		ByteBuffer data = ByteBuffer.allocate(5);
-		data.order(ByteOrder.LITTLE_ENDIAN);
-		data.put((byte)(red & 0xFF));
-		data.put((byte)(green & 0xFF));
-		data.put((byte)(blue & 0xFF));
-		data.put((byte)(amber & 0xFF));
-		data.put((byte)(white & 0xFF));
-		sendCommand(SET_RGBAW_LEDS_PWM_COMMAND, data.array());
+		channelPwm[0] = red;
+		channelPwm[1] = green;
+		channelPwm[2] = blue;
+		channelPwm[3] = amber;
+		channelPwm[4] = white;
+		sendPwmState(channelPwm);
+	}
+	
+	/**
+	 * Sets the PWM duty cycle of each led, indexed by channel like the
+	 * payload of {@link #SET_RGBAW_LEDS_PWM_COMMAND}
+	 */
+	@Override
+	public synchronized void setPwm(int[] pwm) throws IOException{
+		sendPwmState(pwm);
+	}
+	
+	@Override
+	public int getNumChannels(){
+		return NUM_CHANNELS;
+	}
+	
+	/**
+	 * @param pwm The PWM duty cycle of every channel
+	 */
+	private void sendPwmState(int[] pwm) throws IOException{
+		for(int i=0; i<NUM_CHANNELS; i++){
+			pwmPayload[i] = (byte)(pwm[i] & 0xFF);
+		}
+		// The command is coalescible, so sendCommand copies the payload
+		sendCommand(SET_RGBAW_LEDS_PWM_COMMAND, pwmPayload);
 	}
 	
 	
@@ -123,6 +192,22 @@ public class LedLamp1Device extends Device {
 		};
 		
 		colorCalc = new MulticolorSourceCalculator(sources);
+		sourceLumi = new double[sources.length];
+		sourceChannels = new int[sources.length];
+		for(int i=0; i<sources.length; i++){
+			LightSource source = sources[i];
+			if(source==red){
+				sourceChannels[i] = RED_CHANNEL;
+			} else if(source==green){
+				sourceChannels[i] = GREEN_CHANNEL;
+			} else if(source==blue){
+				sourceChannels[i] = BLUE_CHANNEL;
+			} else if(source==amber){
+				sourceChannels[i] = AMBER_CHANNEL;
+			} else {
+				sourceChannels[i] = WHITE_CHANNEL;
+			}
+		}
 		
 		
 		frame = new ChromaticityJFrame(new CiexyYColorSelectedListener() {
@@ -0,0 +1,62 @@
+package com.mattibal.meshnet.devices;
+
+import java.io.IOException;
+
+import com.mattibal.meshnet.DeviceGroup;
+import com.mattibal.meshnet.effects.PwmOutput;
+
+/**
+ * A group of {@link LedLamp1Device}s that show the same color. The PWM of
+ * the leds is calculated once, and it's sent to all the lamps with the
+ * packets of a {@link DeviceGroup}, so an effect played on many lamps
+ * costs about like on one lamp.
+ */
+public class LedLamp1Group extends DeviceGroup implements PwmOutput {
+
+	/** The lamp that calculates the PWM, it's the same for all the lamps */
+	private final LedLamp1Device reference;
+
+	// Buffers reused by every setColor, guarded by the lock of this group
+	private final int[] channelPwm = new int[LedLamp1Device.NUM_CHANNELS];
+	private final byte[] pwmPayload = new byte[LedLamp1Device.NUM_CHANNELS];
+
+
+	/**
+	 * @param lamps The lamps of the group, there must be at least one
+	 */
+	public LedLamp1Group(LedLamp1Device... lamps){
+		if(lamps.length == 0){
+			throw new IllegalArgumentException("A lamp group needs at least a lamp");
+		}
+		reference = lamps[0];
+		for(LedLamp1Device lamp : lamps){
+			addDevice(lamp);
+		}
+	}
+
+	@Override
+	public synchronized void setColor(double x, double y, double Ylumi) throws IOException {
+		reference.getPwmForColor(x, y, Ylumi, channelPwm);
+		setPwm(channelPwm);
+	}
+
+	@Override
+	public synchronized void setPwm(int[] pwm) throws IOException {
+		for(int i=0; i<pwmPayload.length; i++){
+			pwmPayload[i] = (byte)(pwm[i] & 0xFF);
+		}
+		// The payload is copied in the packet
+		sendCommand(LedLamp1Device.SET_RGBAW_LEDS_PWM_COMMAND, pwmPayload);
+	}
+
+	@Override
+	public void getPwmForColor(double x, double y, double Ylumi, int[] outPwm) {
+		reference.getPwmForColor(x, y, Ylumi, outPwm);
+	}
+
+	@Override
+	public int getNumChannels() {
+		return LedLamp1Device.NUM_CHANNELS;
+	}
+
+}
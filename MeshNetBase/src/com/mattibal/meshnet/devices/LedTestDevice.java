@@ -1,6 +1,8 @@
 package com.mattibal.meshnet.devices;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
 
 import com.mattibal.meshnet.Device;
 
@@ -18,19 +20,29 @@ public class LedTestDevice extends Device {
 		super(uniqueDeviceId, DEVICE_TYPE);
 	}
 	
-	/** TODO this method should block until I receive a response from the
-	 * device that he has received the message and the LED has been actually
-	 * turned on.
+	/**
 	 * @throws IOException when I MIGHT not have set the LED state
 	 */
 	public synchronized void setLedState(boolean on) throws IOException{
+		sendCommand(SET_LED_STATE_COMMAND, getLedStateData(on));
+	}
+	
+	/**
+	 * Like setLedState, but the returned future is completed when the device
+	 * confirms that the LED has been actually turned on or off
+	 */
+	public synchronized Future<ByteBuffer> setLedStateAsync(boolean on) throws IOException{
+		return sendCommandAsync(SET_LED_STATE_COMMAND, getLedStateData(on));
+	}
+	
+	private static byte[] getLedStateData(boolean on){
 		byte[] data = new byte[1];
 		if(on){
 			data[0] = 1;
 		} else {
 			data[0] = 0;
 		}
-		sendCommand(1, data);
+		return data;
 	}
 
 }
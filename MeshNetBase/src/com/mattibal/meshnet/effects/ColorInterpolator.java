@@ -0,0 +1,162 @@
+package com.mattibal.meshnet.effects;
+
+import com.mattibal.meshnet.utils.color.ColourConverter;
+import com.mattibal.meshnet.utils.color.ColourConverter.WhitePoint;
+
+/**
+ * Interpolates between two colors in a color space where the steps look
+ * more even than in xyY. The coordinates of the two colors are calculated
+ * only once, in the constructor.
+ */
+public class ColorInterpolator {
+
+	/** The color spaces where the interpolation can be done */
+	public enum Space {
+		/**
+		 * The CIE 1976 u'v' chromaticity and the luminance, linearly. It's
+		 * cheap, and the chromaticity moves on a straight line, so it never
+		 * leaves the gamut of a lamp if the two colors are in it.
+		 */
+		UVY,
+		/**
+		 * The lightness, chroma and hue of CIELab, with the hue along the
+		 * shortest way around. The white is D65 at the luminance of the
+		 * brightest color. The lightness changes evenly to the eye, and the
+		 * chroma doesn't drop in the middle like on a straight line.
+		 */
+		LCH
+	}
+
+	/** Below this chroma, about a just noticeable difference, a color is gray */
+	private static final double MIN_CHROMA = 1;
+
+	private final Space space;
+
+	// The colors in xyY, that are the ends of the interpolation exactly
+	private final double x1, y1, Ylumi1, x2, y2, Ylumi2;
+
+	// The coordinates of the colors in the interpolation space, and their differences
+	private final double c1a, c1b, c1c;
+	private final double da, db, dc;
+
+	/** The luminance of the white of CIELab */
+	private final double Yref;
+
+
+	public ColorInterpolator(double x1, double y1, double Ylumi1,
+			double x2, double y2, double Ylumi2, Space space){
+		this.space = space;
+		this.x1 = x1;
+		this.y1 = y1;
+		this.Ylumi1 = Ylumi1;
+		this.x2 = x2;
+		this.y2 = y2;
+		this.Ylumi2 = Ylumi2;
+		if(space == Space.UVY){
+			Yref = 0;
+			c1a = xyToU(x1, y1);
+			c1b = xyToV(x1, y1);
+			c1c = Ylumi1;
+			da = xyToU(x2, y2) - c1a;
+			db = xyToV(x2, y2) - c1b;
+			dc = Ylumi2 - Ylumi1;
+		} else {
+			double max = Math.max(Ylumi1, Ylumi2);
+			Yref = max > 0 ? max : 1;
+			double[] lch1 = toLCh(x1, y1, Ylumi1, Yref);
+			double[] lch2 = toLCh(x2, y2, Ylumi2, Yref);
+			// The hue of a gray is the one of the other color
+			if(lch1[1] < MIN_CHROMA){
+				lch1[2] = lch2[2];
+			} else if(lch2[1] < MIN_CHROMA){
+				lch2[2] = lch1[2];
+			}
+			double dh = lch2[2] - lch1[2];
+			if(dh > Math.PI){
+				dh -= 2*Math.PI;
+			} else if(dh < -Math.PI){
+				dh += 2*Math.PI;
+			}
+			c1a = lch1[0];
+			c1b = lch1[1];
+			c1c = lch1[2];
+			da = lch2[0] - lch1[0];
+			db = lch2[1] - lch1[1];
+			dc = dh;
+		}
+	}
+
+	public Space getSpace(){
+		return space;
+	}
+
+	/**
+	 * Calculates the color at a fraction t of the way from the first color to
+	 * the second. In the LCH space it allocates a few small arrays.
+	 *
+	 * @param t From 0 (the first color) to 1 (the second color)
+	 * @param outxyY Where the x, y and Y of the color are written
+	 */
+	public void interpolate(double t, double[] outxyY){
+		if(t <= 0 || t >= 1){
+			outxyY[0] = t <= 0 ? x1 : x2;
+			outxyY[1] = t <= 0 ? y1 : y2;
+			outxyY[2] = t <= 0 ? Ylumi1 : Ylumi2;
+			return;
+		}
+		double a = c1a + da*t;
+		double b = c1b + db*t;
+		double c = c1c + dc*t;
+		if(space == Space.UVY){
+			outxyY[0] = 9*a / (6*a - 16*b + 12);
+			outxyY[1] = 4*b / (6*a - 16*b + 12);
+			outxyY[2] = c;
+			return;
+		}
+		double[] XYZ = ColourConverter.LABtoXYZ(
+				new double[] {a, b*Math.cos(c), b*Math.sin(c)}, WhitePoint.D65);
+		double sum = XYZ[0] + XYZ[1] + XYZ[2];
+		if(a <= 0 || sum <= 0){
+			// Black, its chromaticity is the one of the nearest color
+			outxyY[0] = t < 0.5 ? x1 : x2;
+			outxyY[1] = t < 0.5 ? y1 : y2;
+			outxyY[2] = 0;
+			return;
+		}
+		outxyY[0] = XYZ[0] / sum;
+		outxyY[1] = XYZ[1] / sum;
+		outxyY[2] = XYZ[1] * Yref / 100;
+	}
+
+
+	/**
+	 * @return The lightness, chroma and hue (in radians) of a color, with a
+	 * white of luminance Yref
+	 */
+	private static double[] toLCh(double x, double y, double Ylumi, double Yref){
+		double[] Lab = toLab(x, y, Ylumi, Yref);
+		return new double[] {Lab[0], Math.hypot(Lab[1], Lab[2]), Math.atan2(Lab[2], Lab[1])};
+	}
+
+	/**
+	 * @return The CIELab coordinates of a color, with a D65 white of
+	 * luminance Yref
+	 */
+	static double[] toLab(double x, double y, double Ylumi, double Yref){
+		if(Ylumi <= 0 || y <= 0){
+			return new double[] {0, 0, 0};
+		}
+		double scale = 100 / Yref;
+		double[] XYZ = {x*Ylumi/y*scale, Ylumi*scale, (1-x-y)*Ylumi/y*scale};
+		return ColourConverter.XYZtoLAB(XYZ, WhitePoint.D65);
+	}
+
+	private static double xyToU(double x, double y){
+		return 4*x / (-2*x + 12*y + 3);
+	}
+
+	private static double xyToV(double x, double y){
+		return 9*y / (-2*x + 12*y + 3);
+	}
+
+}
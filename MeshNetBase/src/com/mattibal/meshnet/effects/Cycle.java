@@ -0,0 +1,61 @@
+package com.mattibal.meshnet.effects;
+
+/**
+ * Plays another effect again and again, for a number of times or forever.
+ */
+public class Cycle extends LightEffect {
+
+	private final LightEffect effect;
+	private final long effectMs;
+	private final boolean alternate;
+	private final int repetitions;
+
+
+	/**
+	 * Repeats the effect forever
+	 *
+	 * @param alternate If true the effect is played backwards every other
+	 * time, so a fade goes back and forth between its colors
+	 */
+	public Cycle(LightEffect effect, boolean alternate){
+		this(effect, alternate, 0);
+	}
+
+	/**
+	 * @param repetitions How many times the effect is played, or 0 to play
+	 * it forever
+	 */
+	public Cycle(LightEffect effect, boolean alternate, int repetitions){
+		effectMs = effect.getDurationMs();
+		if(effectMs <= 0){
+			throw new IllegalArgumentException("Only effects with a positive duration can be repeated");
+		}
+		if(repetitions < 0){
+			throw new IllegalArgumentException("Negative repetitions: "+repetitions);
+		}
+		this.effect = effect;
+		this.alternate = alternate;
+		this.repetitions = repetitions;
+	}
+
+	@Override
+	public long getDurationMs() {
+		return repetitions > 0 ? effectMs * repetitions : FOREVER;
+	}
+
+	@Override
+	public void getColor(double timeMs, double[] outxyY) {
+		long n = (long) (timeMs / effectMs);
+		double t = timeMs - n * (double) effectMs;
+		if(repetitions > 0 && n >= repetitions){
+			// The end of the last repetition
+			n = repetitions - 1;
+			t = effectMs;
+		}
+		if(alternate && (n & 1) == 1){
+			t = effectMs - t;
+		}
+		effect.getColor(t, outxyY);
+	}
+
+}
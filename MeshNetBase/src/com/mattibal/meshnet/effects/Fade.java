@@ -0,0 +1,40 @@
+package com.mattibal.meshnet.effects;
+
+import com.mattibal.meshnet.utils.color.AbsoluteColor;
+
+/**
+ * Changes the color from a color to another one, with an even speed in the
+ * interpolation space, and then stays at the second color.
+ */
+public class Fade extends LightEffect {
+
+	private final long durationMs;
+	private final ColorInterpolator interpolator;
+
+
+	public Fade(AbsoluteColor from, AbsoluteColor to, long durationMs, ColorInterpolator.Space space){
+		this(from.getx(), from.gety(), from.getYlumi(), to.getx(), to.gety(), to.getYlumi(),
+				durationMs, space);
+	}
+
+	public Fade(double x1, double y1, double Ylumi1, double x2, double y2, double Ylumi2,
+			long durationMs, ColorInterpolator.Space space){
+		if(durationMs < 0){
+			throw new IllegalArgumentException("Negative duration: "+durationMs);
+		}
+		this.durationMs = durationMs;
+		this.interpolator = new ColorInterpolator(x1, y1, Ylumi1, x2, y2, Ylumi2, space);
+	}
+
+	@Override
+	public long getDurationMs() {
+		return durationMs;
+	}
+
+	@Override
+	public void getColor(double timeMs, double[] outxyY) {
+		double t = durationMs > 0 ? timeMs / durationMs : 1;
+		interpolator.interpolate(Math.max(0, Math.min(1, t)), outxyY);
+	}
+
+}
@@ -0,0 +1,159 @@
+package com.mattibal.meshnet.effects;
+
+import com.mattibal.meshnet.utils.color.AbsoluteColor;
+
+/**
+ * A fade from a color to another one that is sampled entirely when it's
+ * created, with the samples already converted to the PWM duty cycles of
+ * a {@link PwmOutput}. Playing it on that output, every tick of the
+ * {@link LightEffectEngine} just picks a sample, without calculating colors.
+ *
+ * The samples are at the same distance from each other in CIELab, so the
+ * color changes with an even speed to the eye. The way between the two
+ * colors is the one of the {@link ColorInterpolator} of the given space.
+ *
+ * On the other outputs it's played like a {@link Fade}, from the samples.
+ */
+public class FadePath extends LightEffect {
+
+	/** The way is measured in CIELab with this many steps for every sample */
+	private static final int MEASURE_STEPS_PER_SAMPLE = 8;
+
+	private final long durationMs;
+	private final PwmOutput target;
+
+	/** The colors of the samples, in xyY */
+	private final double[][] colors;
+	/** The PWM duty cycles of the samples, indexed by sample and channel */
+	private final int[][] pwm;
+
+
+	/**
+	 * Samples a fade with a sample for every tick of the shared engine, and
+	 * at least the two colors
+	 */
+	public FadePath(AbsoluteColor from, AbsoluteColor to, long durationMs,
+			ColorInterpolator.Space space, PwmOutput target){
+		this(from.getx(), from.gety(), from.getYlumi(), to.getx(), to.gety(), to.getYlumi(),
+				durationMs, space, target);
+	}
+
+	public FadePath(double x1, double y1, double Ylumi1, double x2, double y2, double Ylumi2,
+			long durationMs, ColorInterpolator.Space space, PwmOutput target){
+		this(x1, y1, Ylumi1, x2, y2, Ylumi2, durationMs, space, target,
+				getNumSamplesForTicks(durationMs));
+	}
+
+	private static int getNumSamplesForTicks(long durationMs){
+		// Checked here too, or a negative duration would fail for the samples
+		checkDuration(durationMs);
+		return (int) Math.max(2, durationMs / LightEffectEngine.DEFAULT_TICK_MS + 1);
+	}
+
+	private static void checkDuration(long durationMs){
+		if(durationMs < 0){
+			throw new IllegalArgumentException("Negative duration: "+durationMs);
+		}
+	}
+
+	/**
+	 * @param target The output whose duty cycles are calculated
+	 * @param numSamples The number of samples, including the two colors
+	 */
+	public FadePath(double x1, double y1, double Ylumi1, double x2, double y2, double Ylumi2,
+			long durationMs, ColorInterpolator.Space space, PwmOutput target, int numSamples){
+		checkDuration(durationMs);
+		if(numSamples < 2){
+			throw new IllegalArgumentException("A fade needs at least 2 samples");
+		}
+		this.durationMs = durationMs;
+		this.target = target;
+		ColorInterpolator interpolator = new ColorInterpolator(x1, y1, Ylumi1, x2, y2, Ylumi2, space);
+
+		// Measure the length of the way in CIELab, at regular fractions of it
+		int numSteps = (numSamples-1) * MEASURE_STEPS_PER_SAMPLE;
+		double Yref = Math.max(Math.max(Ylumi1, Ylumi2), 1e-9);
+		double[] length = new double[numSteps+1];
+		double[] xyY = new double[3];
+		double[] prevLab = ColorInterpolator.toLab(x1, y1, Ylumi1, Yref);
+		for(int i=1; i<=numSteps; i++){
+			interpolator.interpolate((double) i / numSteps, xyY);
+			double[] Lab = ColorInterpolator.toLab(xyY[0], xyY[1], xyY[2], Yref);
+			double dL = Lab[0] - prevLab[0];
+			double da = Lab[1] - prevLab[1];
+			double db = Lab[2] - prevLab[2];
+			length[i] = length[i-1] + Math.sqrt(dL*dL + da*da + db*db);
+			prevLab = Lab;
+		}
+
+		// Place the samples at the same distances along the way
+		double total = length[numSteps];
+		colors = new double[numSamples][];
+		pwm = new int[numSamples][target.getNumChannels()];
+		int step = 0;
+		for(int s=0; s<numSamples; s++){
+			double t;
+			if(s == numSamples-1){
+				// Exactly at the end, even if the way ends with steps of length 0
+				t = 1;
+			} else if(total > 0){
+				double l = total * s / (numSamples-1);
+				while(step < numSteps-1 && length[step+1] < l){
+					step++;
+				}
+				double stepLength = length[step+1] - length[step];
+				double f = stepLength > 0 ? (l - length[step]) / stepLength : 0;
+				t = (step + Math.max(0, Math.min(1, f))) / numSteps;
+			} else {
+				// The colors are the same
+				t = (double) s / (numSamples-1);
+			}
+			colors[s] = new double[3];
+			interpolator.interpolate(t, colors[s]);
+			target.getPwmForColor(colors[s][0], colors[s][1], colors[s][2], pwm[s]);
+		}
+	}
+
+	/**
+	 * @return The output for which the duty cycles have been calculated
+	 */
+	public PwmOutput getTarget(){
+		return target;
+	}
+
+	public int getNumSamples(){
+		return colors.length;
+	}
+
+	/**
+	 * @return The sample to show at a time from the start of the fade
+	 */
+	public int getSampleIndex(double timeMs){
+		if(timeMs >= durationMs){
+			return colors.length - 1;
+		}
+		if(timeMs <= 0){
+			return 0;
+		}
+		return (int) Math.round(timeMs / durationMs * (colors.length - 1));
+	}
+
+	/**
+	 * @return The duty cycles of every channel of a sample, that must not
+	 * be modified
+	 */
+	public int[] getPwm(int sample){
+		return pwm[sample];
+	}
+
+	@Override
+	public long getDurationMs() {
+		return durationMs;
+	}
+
+	@Override
+	public void getColor(double timeMs, double[] outxyY) {
+		System.arraycopy(colors[getSampleIndex(timeMs)], 0, outxyY, 0, 3);
+	}
+
+}
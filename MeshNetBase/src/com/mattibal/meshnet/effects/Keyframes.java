@@ -0,0 +1,83 @@
+package com.mattibal.meshnet.effects;
+
+import java.util.Arrays;
+
+/**
+ * Passes through a sequence of colors at given times, fading between them
+ * like a {@link Fade}. Before the first keyframe the color is the one of
+ * the first keyframe, and the effect ends at the last one.
+ *
+ * The keyframes must be added before the effect is played.
+ */
+public class Keyframes extends LightEffect {
+
+	private final ColorInterpolator.Space space;
+
+	private long[] times = new long[4];
+	private double[][] colors = new double[4][];
+	/** The fade from every keyframe to the next one */
+	private ColorInterpolator[] segments = new ColorInterpolator[4];
+	private int count = 0;
+
+
+	public Keyframes(ColorInterpolator.Space space){
+		this.space = space;
+	}
+
+	/**
+	 * Adds a keyframe after the ones already added
+	 *
+	 * @param timeMs The time from the start of the effect, not less than the
+	 * time of the previous keyframe
+	 */
+	public void addKeyframe(long timeMs, double x, double y, double Ylumi){
+		if(timeMs < 0 || (count > 0 && timeMs < times[count-1])){
+			throw new IllegalArgumentException("Keyframe out of order at "+timeMs+" ms");
+		}
+		if(count == times.length){
+			times = Arrays.copyOf(times, count*2);
+			colors = Arrays.copyOf(colors, count*2);
+			segments = Arrays.copyOf(segments, count*2);
+		}
+		times[count] = timeMs;
+		colors[count] = new double[] {x, y, Ylumi};
+		if(count > 0){
+			double[] prev = colors[count-1];
+			segments[count-1] = new ColorInterpolator(prev[0], prev[1], prev[2], x, y, Ylumi, space);
+		}
+		count++;
+	}
+
+	@Override
+	public long getDurationMs() {
+		return count > 0 ? times[count-1] : 0;
+	}
+
+	@Override
+	public void getColor(double timeMs, double[] outxyY) {
+		if(count == 0){
+			throw new IllegalStateException("No keyframes");
+		}
+		if(timeMs <= times[0] || count == 1){
+			System.arraycopy(colors[0], 0, outxyY, 0, 3);
+			return;
+		}
+		if(timeMs >= times[count-1]){
+			System.arraycopy(colors[count-1], 0, outxyY, 0, 3);
+			return;
+		}
+		// Find the last keyframe not after timeMs
+		int lo = 0, hi = count-1;
+		while(hi - lo > 1){
+			int mid = (lo + hi) / 2;
+			if(times[mid] <= timeMs){
+				lo = mid;
+			} else {
+				hi = mid;
+			}
+		}
+		long length = times[lo+1] - times[lo];
+		segments[lo].interpolate(length > 0 ? (timeMs - times[lo]) / length : 1, outxyY);
+	}
+
+}
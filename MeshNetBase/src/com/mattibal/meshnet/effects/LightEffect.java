@@ -0,0 +1,30 @@
+package com.mattibal.meshnet.effects;
+
+/**
+ * A color that changes with time, played by a {@link LightEffectEngine}.
+ *
+ * The color depends only on the time since the start of the effect, so an
+ * effect can be played by many outputs at the same time, and a late tick
+ * doesn't slow it down.
+ */
+public abstract class LightEffect {
+
+	/** The duration of an effect that never ends */
+	public static final long FOREVER = -1;
+
+	/**
+	 * @return The duration of the effect in milliseconds, or FOREVER
+	 */
+	public abstract long getDurationMs();
+
+	/**
+	 * Calculates the color of the effect at a time. It's called by the
+	 * thread of the engine at every tick, so it should be fast.
+	 *
+	 * @param timeMs The time from the start of the effect, between 0 and
+	 * the duration
+	 * @param outxyY Where the x, y and Y of the color are written
+	 */
+	public abstract void getColor(double timeMs, double[] outxyY);
+
+}
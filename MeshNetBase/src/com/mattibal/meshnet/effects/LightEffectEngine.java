@@ -0,0 +1,203 @@
+package com.mattibal.meshnet.effects;
+
+import java.util.HashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays {@link LightEffect}s on {@link LightOutput}s, all with a single
+ * thread that at every tick sets the current color of every output.
+ *
+ * The ticks are at a fixed rate, and the colors are calculated from the
+ * time elapsed since the start of every effect, so a late tick doesn't
+ * delay the effects: the next colors are where they should be. Ticks that
+ * were late so much that they run right after the previous one are skipped,
+ * and an output is set only if its color has changed.
+ *
+ * A {@link FadePath} played on the output it was sampled for sets the
+ * duty cycles of its samples, without any color calculation.
+ *
+ * Every output plays one effect at a time: playing another effect on it
+ * replaces the previous one. The ticks stop when no effect is playing.
+ */
+public class LightEffectEngine {
+
+	public static final long DEFAULT_TICK_MS = 25;
+
+	private static final LightEffectEngine shared = new LightEffectEngine(DEFAULT_TICK_MS);
+
+	/** Shared by all the engines, it only runs the ticks */
+	private static final ScheduledExecutorService tickTimer =
+			new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "MeshNet light effects");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final long tickNanos;
+
+	/** The effect playing on every output. Guarded by this. */
+	private final HashMap<LightOutput, Playback> playing = new HashMap<LightOutput, Playback>();
+	/** A copy of the values of playing, replaced at every change */
+	private volatile Playback[] playbacks = new Playback[0];
+	/** Guarded by this, null when there are no effects */
+	private ScheduledFuture<?> ticks = null;
+
+	/** Used only by the tick thread */
+	private long lastTickNanos;
+
+	private final Runnable tickTask = new Runnable() {
+		@Override
+		public void run() {
+			tick();
+		}
+	};
+
+
+	public LightEffectEngine(long tickMs){
+		if(tickMs <= 0){
+			throw new IllegalArgumentException("The tick must be positive: "+tickMs);
+		}
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+		this.lastTickNanos = System.nanoTime() - tickNanos;
+	}
+
+	/**
+	 * @return The engine shared by everybody, with a tick of DEFAULT_TICK_MS
+	 */
+	public static LightEffectEngine getShared(){
+		return shared;
+	}
+
+	/**
+	 * Starts playing an effect on an output, replacing the effect that it
+	 * was playing.
+	 */
+	public synchronized void play(LightOutput output, LightEffect effect){
+		Playback old = playing.put(output, new Playback(output, effect, System.nanoTime()));
+		if(old != null){
+			old.stopped = true;
+		}
+		playbacksChanged();
+	}
+
+	/**
+	 * Stops the effect of an output, that keeps the last color it was set to
+	 */
+	public synchronized void stop(LightOutput output){
+		Playback old = playing.remove(output);
+		if(old != null){
+			old.stopped = true;
+			playbacksChanged();
+		}
+	}
+
+	public synchronized boolean isPlaying(LightOutput output){
+		return playing.containsKey(output);
+	}
+
+	/** @return The number of outputs that are playing an effect */
+	public synchronized int getNumPlaying(){
+		return playing.size();
+	}
+
+	/** Stops the effect of an output only if it's still this playback */
+	private synchronized void finish(Playback playback){
+		if(playing.get(playback.output) == playback){
+			playing.remove(playback.output);
+			playback.stopped = true;
+			playbacksChanged();
+		}
+	}
+
+	private void playbacksChanged(){
+		playbacks = playing.values().toArray(new Playback[playing.size()]);
+		if(playing.isEmpty()){
+			if(ticks != null){
+				ticks.cancel(false);
+				ticks = null;
+			}
+		} else if(ticks == null){
+			ticks = tickTimer.scheduleAtFixedRate(tickTask, 0, tickNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+
+	private void tick(){
+		long now = System.nanoTime();
+		// The executor runs the ticks that were missed one after another
+		if(now - lastTickNanos < tickNanos / 2){
+			return;
+		}
+		lastTickNanos = now;
+		for(Playback playback : playbacks){
+			playback.update(now);
+		}
+	}
+
+
+	private class Playback {
+
+		private final LightOutput output;
+		private final LightEffect effect;
+		private final long startNanos;
+		/** The effect if it's a path sampled for this output, or null */
+		private final FadePath path;
+		/** Set when it's removed, so that a tick in progress doesn't set the output */
+		private volatile boolean stopped = false;
+
+		// Used only by the tick thread
+		private final double[] color = new double[3];
+		private final double[] lastColor = {Double.NaN, Double.NaN, Double.NaN};
+		private int lastSample = -1;
+
+		private Playback(LightOutput output, LightEffect effect, long startNanos){
+			this.output = output;
+			this.effect = effect;
+			this.startNanos = startNanos;
+			if(effect instanceof FadePath && ((FadePath) effect).getTarget() == output){
+				path = (FadePath) effect;
+			} else {
+				path = null;
+			}
+		}
+
+		private void update(long now){
+			if(stopped){
+				return;
+			}
+			double timeMs = (now - startNanos) / 1e6;
+			long duration = effect.getDurationMs();
+			boolean finished = duration != LightEffect.FOREVER && timeMs >= duration;
+			try {
+				if(path != null){
+					int sample = path.getSampleIndex(finished ? duration : timeMs);
+					if(!stopped && sample != lastSample){
+						path.getTarget().setPwm(path.getPwm(sample));
+						lastSample = sample;
+					}
+				} else {
+					effect.getColor(finished ? duration : timeMs, color);
+					if(!stopped && (color[0] != lastColor[0] || color[1] != lastColor[1] || color[2] != lastColor[2])){
+						output.setColor(color[0], color[1], color[2]);
+						System.arraycopy(color, 0, lastColor, 0, 3);
+					}
+				}
+			} catch (Exception e) {
+				// Stop it, or it would fail again at every tick
+				e.printStackTrace();
+				finished = true;
+			}
+			if(finished){
+				finish(this);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,17 @@
+package com.mattibal.meshnet.effects;
+
+import java.io.IOException;
+
+/**
+ * Something that can show a color, like a lamp or a group of lamps, that
+ * can be driven by a {@link LightEffectEngine}.
+ */
+public interface LightOutput {
+
+	/**
+	 * Show a color, given as CIE xyY. It's called at every tick of the
+	 * engine, so it should be fast and not allocate.
+	 */
+	public void setColor(double x, double y, double Ylumi) throws IOException;
+
+}
@@ -0,0 +1,27 @@
+package com.mattibal.meshnet.effects;
+
+import java.io.IOException;
+
+/**
+ * A {@link LightOutput} driven by the PWM duty cycles of its channels, that
+ * can convert colors to duty cycles in advance, so that a {@link FadePath}
+ * can be played without any color calculation.
+ */
+public interface PwmOutput extends LightOutput {
+
+	/** @return The number of PWM channels */
+	public int getNumChannels();
+
+	/**
+	 * Calculates the duty cycles that setColor would set for a color
+	 *
+	 * @param outPwm Where the duty cycle of every channel is written
+	 */
+	public void getPwmForColor(double x, double y, double Ylumi, int[] outPwm);
+
+	/**
+	 * Sets the duty cycle of every channel. The array isn't kept.
+	 */
+	public void setPwm(int[] pwm) throws IOException;
+
+}
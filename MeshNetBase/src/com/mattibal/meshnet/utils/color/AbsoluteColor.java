@@ -10,11 +10,10 @@ public class AbsoluteColor {
 	private final double Y;
 
 	/**
-	 * This creates an AbsoluteColor from sRGB values
+	 * This creates an AbsoluteColor from 8 bit sRGB values (0-255)
 	 */
 	public AbsoluteColor(int r, int g, int b){
-		float[] rgb = {r,g,b};
-		float[] XYZ = SrgbConverter.RGBtoXYZ(rgb);
+		float[] XYZ = SrgbConverter.RGBtoXYZ(r, g, b);
 		
 		// XYZ to xyY conversion
 		double x = XYZ[0]/(XYZ[0]+XYZ[1]+XYZ[2]);
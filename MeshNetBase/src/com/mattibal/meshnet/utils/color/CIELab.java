@@ -105,102 +105,30 @@ public class CIELab
         return new Color((float)rgb[0],(float)rgb[1],(float)rgb[2]);        
     }
          
-    /** Finds the nearest in-gamut colour to the given RGB triplet.
+    /** Finds the nearest in-gamut colour to the given RGB triplet, keeping its lightness and hue and
+     *  reducing its chroma to the boundary of the gamut, that is found analytically by {@link GamutMapper}.
      *  @param rgb Colour to find. Each component can be out of range 0-1.
      *  @param Lab The Lab triplet that give rise to the given RGB triplet.
      *  @return A guaranteed in-gamut colour as close as possible in CIELab space to the given colour. 
      */
     private Color findNearest(double[]rgb, double[] Lab)
     {
-        // Constrain out of bounds colours to their nearest visible colour (not strictly CIELab)
-        // TODO: Improve iteration to do a few random near neighbours.
         if ((rgb[0] < 0) || (rgb[1] < 0) || (rgb[2] < 0) || (rgb[0] > 1) || (rgb[1] > 1) || (rgb[2] > 1))
         {
-            double L = Lab[0];
-            double a = Lab[1];
-            double b = Lab[2];
-            
-            // Move point towards the whitepoint and until it is just inside the bounds.
-            double theta = Math.atan2(a,b);
-            double xInc = Math.sin(theta);
-            double yInc = Math.cos(theta);
-            double minDistSq = a*a + b*b;
-            double mag = Math.sqrt(minDistSq)/2;
-            
-            double a2 = a,
-                   b2 = b;
-            
-            if (minDistSq > 1)
-            {
-                a2 -= xInc*mag;
-            }
-            
-            if (minDistSq > 1)
-            {
-                b2 -= yInc*mag;
-            }
-            
-            Color lastColour = null;
-            boolean isOutside = true;
-            while (Math.abs(mag) > 0.01)
-            {
-                Color newColour = getColour(L,a2,b2,false);
-                if (newColour == null)
-                {
-                    if (isOutside)
-                    {
-                        // We are still outside so continue in same direction
-                        mag /=2.0;
-                    }
-                    else
-                    {
-                        // We have crossed from inside to out, so reverse direction
-                        mag /= -2.0;
-                    }
-                    isOutside = true;
-                }
-                else
-                {
-                    // We have found a valid colour, so store it if it is nearer than previous nearest point.
-                    double distSq = (a2-a)*(a2-a) + (b2-b)*(b2-b);
-                    if (distSq < minDistSq)
-                    {
-                        minDistSq = distSq;
-                        lastColour = newColour;
-                    }
-                                            
-                    if (isOutside)
-                    {
-                        // We have crossed from outside to inside, so reverse direction
-                        mag /= -2;
-                    }
-                    else
-                    {
-                        // We are still inside the boundary, so continue in same direction.
-                        mag /= 2;
-                    }
-                    isOutside = false;
-                }
-                
-                if (a2*a2 > 1)
-                {
-                    a2 -= xInc*mag;
-                }
-                
-                if (b2*b2 > 1)
-                {
-                    b2 -= yInc*mag;
-                }
-            }
-            if (lastColour == null)
-            {
-                // We must be very close to the whitepoint, so just return it.
-                return getColour(L,0,0,false);
-            }
-            return lastColour;
+            double[] clamped = GamutMapper.clampLab(Lab, wp);
+            rgb = ColourConverter.labToRGB(clamped[0], clamped[1], clamped[2], wp);
         }
-        
-        // Colour was within gamut, so just create a color object out of the given r,g,b values.
-        return new Color((float)rgb[0],(float)rgb[1],(float)rgb[2]);
-    }    
+        return toColour(rgb);
+    }
+    
+    /** Creates a colour from an RGB triplet that is in gamut, apart from rounding errors.
+     *  @param rgb RGB triplet, each component scaled between 0-1.
+     *  @return Colour with the given components.
+     */
+    static Color toColour(double[] rgb)
+    {
+        return new Color((float)Math.max(0, Math.min(1, rgb[0])),
+                         (float)Math.max(0, Math.min(1, rgb[1])),
+                         (float)Math.max(0, Math.min(1, rgb[2])));
+    }
 }
\ No newline at end of file
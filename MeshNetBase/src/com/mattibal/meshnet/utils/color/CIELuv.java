@@ -41,72 +41,6 @@ public class CIELuv
      
  private WhitePoint wp;          // Whitepoint used for colour conversion.
  
- //private double xn,yn,zn;
- //private double un,vn; 
- 
- // Lookup tables for 'most saturated colour' for any give hue.
- private static double[][] msc = {{1,0,0.431}, {1,0,0.415}, {1,0,0.397}, {1,0,0.379}, {1,0,0.359}, {1,0,0.338},  // 0 deg (red)
-                                  {1,0,0.314}, {1,0,0.289}, {1,0,0.260}, {1,0,0.226}, {1,0,0.185}, {1,0,0.131},
-                                  {1,0,0.029}, {1,0.108,0}, {1,0.169,0}, {1,0.213,0}, {1,0.248,0}, {1,0.278,0},
-                                  {1,0.303,0}, {1,0.327,0}, {1,0.348,0}, {1,0.368,0}, {1,0.386,0}, {1,0.403,0},
-                                  {1,0.419,0}, {1,0.434,0}, {1,0.449,0}, {1,0.462,0}, {1,0.475,0}, {1,0.489,0},
-                                  {1,0.501,0}, {1,0.513,0}, {1,0.523,0}, {1,0.535,0}, {1,0.546,0}, {1,0.556,0},
-                                  {1,0.566,0}, {1,0.576,0}, {1,0.586,0}, {1,0.596,0}, {1,0.605,0}, {1,0.614,0},
-                                  {1,0.624,0}, {1,0.633,0}, {1,0.641,0}, {1,0.650,0}, {1,0.659,0}, {1,0.667,0},
-                                  {1,0.675,0}, {1,0.683,0}, {1,0.691,0}, {1,0.699,0}, {1,0.708,0}, {1,0.716,0},
-                                  {1,0.724,0}, {1,0.732,0}, {1,0.739,0}, {1,0.747,0}, {1,0.755,0}, {1,0.763,0},  // 60 deg (yellow)
-                                  {1,0.771,0}, {1,0.779,0}, {1,0.787,0}, {1,0.795,0}, {1,0.803,0}, {1,0.811,0},
-                                  {1,0.819,0}, {1,0.827,0}, {1,0.835,0}, {1,0.843,0}, {1,0.852,0}, {1,0.860,0},
-                                  {1,0.868,0}, {1,0.877,0}, {1,0.885,0}, {1,0.894,0}, {1,0.903,0}, {1,0.913,0}, 
-                                  {1,0.922,0}, {1,0.931,0}, {1,0.94,0},  {1,0.95,0},  {1,0.96,0},  {1,0.969,0},
-                                  {1,0.98,0},  {1,0.99,0},  {0.998,1,0}, {0.987,1,0}, {0.976,1,0}, {0.965,1,0},
-                                  {0.954,1,0}, {0.943,1,0}, {0.932,1,0}, {0.921,1,0}, {0.909,1,0}, {0.898,1,0},
-                                  {0.886,1,0}, {0.874,1,0}, {0.862,1,0}, {0.85,1,0},  {0.838,1,0}, {0.825,1,0},
-                                  {0.811,1,0}, {0.798,1,0}, {0.784,1,0}, {0.771,1,0}, {0.757,1,0}, {0.742,1,0},
-                                  {0.727,1,0}, {0.712,1,0}, {0.695,1,0}, {0.678,1,0}, {0.661,1,0}, {0.644,1,0},
-                                  {0.625,1,0}, {0.605,1,0}, {0.584,1,0}, {0.563,1,0}, {0.539,1,0}, {0.514,1,0},  // 120 deg (green)
-                                  {0.487,1,0}, {0.459,1,0}, {0.426,1,0}, {0.391,1,0}, {0.35,1,0},  {0.302,1,0},
-                                  {0.241,1,0}, {0.151,1,0}, {0,1,0.084}, {0,1,0.205}, {0,1,0.273}, {0,1,0.324},
-                                  {0,1,0.366}, {0,1,0.401}, {0,1,0.431}, {0,1,0.459}, {0,1,0.484}, {0,1,0.507},
-                                  {0,1,0.527}, {0,1,0.547}, {0,1,0.565}, {0,1,0.581}, {0,1,0.598}, {0,1,0.612},
-                                  {0,1,0.627}, {0,1,0.641}, {0,1,0.653}, {0,1,0.666}, {0,1,0.677}, {0,1,0.689},
-                                  {0,1,0.699}, {0,1,0.71},  {0,1,0.72},  {0,1,0.73},  {0,1,0.74},  {0,1,0.749},
-                                  {0,1,0.758}, {0,1,0.767}, {0,1,0.775}, {0,1,0.784}, {0,1,0.792}, {0,1,0.8},
-                                  {0,1,0.807}, {0,1,0.814}, {0,1,0.822}, {0,1,0.829}, {0,1,0.837}, {0,1,0.844},
-                                  {0,1,0.851}, {0,1,0.857}, {0,1,0.864}, {0,1,0.871}, {0,1,0.877}, {0,1,0.884},
-                                  {0,1,0.89},  {0,1,0.897}, {0,1,0.903}, {0,1,0.909}, {0,1,0.915}, {0,1,0.921},  // 180 deg (cyan)
-                                  {0,1,0.928}, {0,1,0.933}, {0,1,0.939}, {0,1,0.945}, {0,1,0.951}, {0,1,0.958},
-                                  {0,1,0.963}, {0,1,0.969}, {0,1,0.975}, {0,1,0.98},  {0,1,0.987}, {0,1,0.992},
-                                  {0,1,0.999}, {0,0.994,1}, {0,0.989,1}, {0,0.984,1}, {0,0.977,1}, {0,0.971,1},
-                                  {0,0.966,1}, {0,0.961,1}, {0,0.955,1}, {0,0.948,1}, {0,0.943,1}, {0,0.938,1},
-                                  {0,0.932,1}, {0,0.927,1}, {0,0.921,1}, {0,0.916,1}, {0,0.909,1}, {0,0.904,1},
-                                  {0,0.898,1}, {0,0.893,1}, {0,0.888,1}, {0,0.882,1}, {0,0.875,1}, {0,0.87,1},
-                                  {0,0.865,1}, {0,0.858,1}, {0,0.852,1}, {0,0.847,1}, {0,0.84,1},  {0,0.835,1},
-                                  {0,0.828,1}, {0,0.822,1}, {0,0.816,1}, {0,0.809,1}, {0,0.803,1}, {0,0.796,1},
-                                  {0,0.789,1}, {0,0.782,1}, {0,0.776,1}, {0,0.769,1}, {0,0.762,1}, {0,0.754,1},
-                                  {0,0.746,1}, {0,0.739,1}, {0,0.731,1}, {0,0.723,1}, {0,0.714,1}, {0,0.705,1},  // 240 deg (blue)
-                                  {0,0.697,1}, {0,0.687,1}, {0,0.678,1}, {0,0.668,1}, {0,0.658,1}, {0,0.648,1},
-                                  {0,0.637,1}, {0,0.625,1}, {0,0.613,1}, {0,0.601,1}, {0,0.588,1}, {0,0.574,1},
-                                  {0,0.559,1}, {0,0.543,1}, {0,0.527,1}, {0,0.509,1}, {0,0.49,1},  {0,0.47,1},
-                                  {0,0.448,1}, {0,0.423,1}, {0,0.397,1}, {0,0.366,1}, {0,0.33,1},  {0,0.288,1},
-                                  {0.096,0.257,1}, {0.181,0.243,1}, {0.237,0.229,1}, {0.28,0.213,1},  {0.317,0.196,1}, {0.35,0.178,1},
-                                  {0.379,0.157,1}, {0.406,0.132,1}, {0.431,0.101,1}, {0.454,0.058,1}, {0.477,0.007,1}, {0.503,0.007,1},
-                                  {0.526,0.006,1}, {0.549,0.005,1}, {0.57,0.003,1}, {0.591,0.002,1}, {0.61,0.003,1},  {0.629,0,1},
-                                  {0.646,0,1}, {0.664,0,1}, {0.681,0,1}, {0.697,0,1}, {0.712,0,1}, {0.728,0,1},
-                                  {0.743,0,1}, {0.758,0,1}, {0.772,0,1}, {0.787,0,1}, {0.8,0,1},   {0.814,0,1},
-                                  {0.827,0,1}, {0.841,0,1}, {0.854,0,1}, {0.867,0,1}, {0.88,0,1},  {0.892,0,1},  // 300 deg (magenta)
-                                  {0.904,0,1}, {0.917,0,1}, {0.93,0,1},  {0.942,0,1}, {0.954,0,1}, {0.967,0,1},
-                                  {0.979,0,1}, {0.991,0,1}, {1,0,0.997}, {1,0,0.985}, {1,0,0.972}, {1,0,0.961},
-                                  {1,0,0.95},  {1,0,0.938}, {1,0,0.928}, {1,0,0.916}, {1,0,0.906}, {1,0,0.896},
-                                  {1,0,0.885}, {1,0,0.875}, {1,0,0.865}, {1,0,0.855}, {1,0,0.845}, {1,0,0.836},
-                                  {1,0,0.826}, {1,0,0.816}, {1,0,0.806}, {1,0,0.796}, {1,0,0.787}, {1,0,0.778},
-                                  {1,0,0.768}, {1,0,0.759}, {1,0,0.749}, {1,0,0.74},  {1,0,0.73},  {1,0,0.721},
-                                  {1,0,0.711}, {1,0,0.701}, {1,0,0.692}, {1,0,0.682}, {1,0,0.672}, {1,0,0.662},
-                                  {1,0,0.652}, {1,0,0.642}, {1,0,0.631}, {1,0,0.621}, {1,0,0.61},  {1,0,0.599},
-                                  {1,0,0.588}, {1,0,0.577}, {1,0,0.565}, {1,0,0.555}, {1,0,0.543}, {1,0,0.53},
-                                  {1,0,0.518}, {1,0,0.505}, {1,0,0.491}, {1,0,0.477}, {1,0,0.462}, {1,0,0.447},
-                                  {1,0,0.431}};                                                                  // 360 deg (red)
-
  // ---------------------------------- Constructors ------------------------------------
  
  /** Creates a CIELuv converter using the default D65 illuminant with 2 degree observer
@@ -124,14 +58,6 @@ public class CIELuv
  CIELuv(WhitePoint wp)
  {       
      this.wp = wp;
-     
-     // RESTORE IF WE CALCULATE MSC ANALYTICALLY
-     //xn = wp.getTristimulus()[0];
-     //yn = wp.getTristimulus()[1];
-     //zn = wp.getTristimulus()[2];
-     
-     //un = (4*xn)/(xn + 15*yn + 3*zn);
-     //vn = (9*yn)/(xn + 15*yn + 3*zn);
  }
      
  // ------------------------------------ Methods ---------------------------------------
@@ -231,13 +157,9 @@ public class CIELuv
 
      if (findNearest)
      {
-         // Clamp RGB values in case of rounding errors or approximations
-         rgb[0] = Math.max(rgb[0],0);
-         rgb[1] = Math.max(rgb[1],0);
-         rgb[2] = Math.max(rgb[2],0);
-         rgb[0] = Math.min(rgb[0],1);
-         rgb[1] = Math.min(rgb[1],1);
-         rgb[2] = Math.min(rgb[2],1);
+         // Reduce the chroma to the boundary of the gamut, keeping lightness and hue
+         double[] clamped = ColourConverter.LChToLuv(GamutMapper.clampLCh(new double[] {L,C,h}, wp));
+         return findNearest(rgb, clamped);
      }
      else if ((rgb[0] < 0) || (rgb[1] < 0) || (rgb[2] < 0) || (rgb[0] > 1) || (rgb[1] > 1) || (rgb[2] >1))
      {
@@ -423,145 +345,28 @@ public class CIELuv
  
  // ---------------------------------- Private methods ------------------------------------------
  
- /** Finds the most saturated colour for the given hue.
+ /** Finds the most saturated colour for the given hue. It is calculated analytically by {@link GamutMapper}.
   *  @param hue Hue whose most saturated colour is to be found. This should be a value scaled between 0-360 degrees.
   *  @return Colour expressed in RGB coordinates.
   */
  public double[] getMostSaturatedColour(double hue)
  {
-     // This version just uses a lookup table rather than calculating intersection analytically.
-     int hueIndex = (int)Math.round(hue%360);
-     return msc[hueIndex];
-     
-     
-     /* Code for building the lookup table
-     for (double C=200; C>1; C-=0.01)
-     {
-         int numCols = 0;
-         double[] total = {0,0,0};
-         for (double L=40; L<100; L+=0.1)
-         {
-             double[] Luv = ColourConverter.LChToLuv(new double[] {L,C,hue});
-             double[] rgb = ColourConverter.luvToRGB(Luv[0],Luv[1],Luv[2], wp);
-
-             if ((rgb[0] >= 0) && (rgb[1] >= 0) && (rgb[2] >=0) && (rgb[0] <= 1) && (rgb[1] <= 1) && (rgb[2] <= 1))
-             {
-                 numCols++;
-                 total[0] += rgb[0];
-                 total[1] += rgb[1];
-                 total[2] += rgb[2];
-             }
-         }
-         if (numCols > 0)
-         {
-             total[0] /= numCols;
-             total[1] /= numCols;
-             total[2] /= numCols;
-             return total;
-         }
-     }
-             
-     System.err.println("No saturated colour found for hue "+hue);
-     return new double[] {0,0,0};
-     */
+     return GamutMapper.getMostSaturatedColour(hue, wp);
  }
  
- /** Finds the nearest in-gamut colour to the given RGB triplet.
+ /** Finds the nearest in-gamut colour to the given RGB triplet, keeping its lightness and hue and
+  *  reducing its chroma to the boundary of the gamut, that is found analytically by {@link GamutMapper}.
   *  @param rgb Colour to find. Each value can be out of range 0-1.
   *  @param Luv The Luv triplet that give rise to the given RGB triplet.
   *  @return A guaranteed in-gamut colour as close as possible in CIELuv space to the given colour. 
   */
  private Color findNearest(double[]rgb, double[] Luv)
  {
-     // Constrain out of bounds colours to their nearest visible colour (not strictly CIELuv)
-     // TODO: Improve iteration to do a few random near neighbours.
      if ((rgb[0] < 0) || (rgb[1] < 0) || (rgb[2] < 0) || (rgb[0] > 1) || (rgb[1] > 1) || (rgb[2] > 1))
      {
-         double L = Luv[0];
-         double u = Luv[1];
-         double v = Luv[2];
-         
-         // Move point towards the whitepoint and until it is just inside the bounds.
-         double theta = Math.atan2(u,v);
-         double xInc = Math.sin(theta);
-         double yInc = Math.cos(theta);
-         double minDistSq = u*u + v*v;
-         double mag = Math.sqrt(minDistSq)/2;
-         
-         double u2 = u,
-                v2 = v;
-         
-         if (minDistSq > 1)
-         {
-             u2 -= xInc*mag;
-         }
-         
-         if (minDistSq > 1)
-         {
-             v2 -= yInc*mag;
-         }
-         
-         Color lastColour = null;
-         boolean isOutside = true;
-         while (Math.abs(mag) > 0.01)
-         {
-             Color newColour = getColour(L,u2,v2,false);
-             if (newColour == null)
-             {
-                 if (isOutside)
-                 {
-                     // We are still outside so continue in same direction
-                     mag /=2.0;
-                 }
-                 else
-                 {
-                     // We have crossed from inside to out, so reverse direction
-                     mag /= -2.0;
-                 }
-                 isOutside = true;
-             }
-             else
-             {
-                 // We have found a valid colour, so store it if it is nearer than previous nearest point.
-                 double distSq = (u2-u)*(u2-u) + (v2-v)*(v2-v);
-                 if (distSq < minDistSq)
-                 {
-                     minDistSq = distSq;
-                     lastColour = newColour;
-                 }
-                                         
-                 if (isOutside)
-                 {
-                     // We have crossed from outside to inside, so reverse direction
-                     mag /= -2;
-                 }
-                 else
-                 {
-                     // We are still inside the boundary, so continue in same direction.
-                     mag /= 2;
-                 }
-                 isOutside = false;
-             }
-             
-             if (u2*u2 > 1)
-             {
-                 u2 -= xInc*mag;
-             }
-             
-             if (v2*v2 > 1)
-             {
-                 v2 -= yInc*mag;
-             }
-         }
-         if (lastColour == null)
-         {
-             // We must be very close to the whitepoint, so just return it.
-             return getColour(L,0,0,false);
-         }
-         return lastColour;
+         double[] clamped = GamutMapper.clampLuv(Luv, wp);
+         rgb = ColourConverter.luvToRGB(clamped[0], clamped[1], clamped[2], wp);
      }
-     
-     // Colour was within gamut, so just create a color object out of the given r,g,b values.
-     return new Color((float)rgb[0],(float)rgb[1],(float)rgb[2]);
+     return CIELab.toColour(rgb);
  }
-}
+}
\ No newline at end of file
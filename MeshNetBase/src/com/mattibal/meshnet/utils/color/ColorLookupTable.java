@@ -0,0 +1,316 @@
+package com.mattibal.meshnet.utils.color;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A precomputed table of the results of a {@link MulticolorSourceCalculator},
+ * sampled on a regular grid of CIE xyY coordinates, that is looked up with
+ * trilinear interpolation.
+ *
+ * Inside a triangle of sources the luminances are linear in XYZ, so the
+ * interpolation is almost exact, but across the edges of the triangles
+ * the calculator switches to a different mix: there the interpolated
+ * luminances of every source can be quite different, even if the mixed
+ * color is still close (within about 0.0002 in xy with the default grid).
+ * Where a corner of the grid cell needs more luminance than the sources
+ * can give, or is where the chromaticity is undefined, the interpolated
+ * luminance would be wrong, so the calculator is used instead.
+ *
+ * Building the table takes some time, so it can be cached in a file whose
+ * name depends on the light sources and on the size of the grid.
+ */
+public class ColorLookupTable {
+
+	public static final int DEFAULT_GRID_SIZE_XY = 64;
+	public static final int DEFAULT_GRID_SIZE_LUMI = 32;
+
+	// The chromaticities of the visible colors are all inside this range
+	private static final double MAX_x = 0.8;
+	private static final double MAX_y = 0.9;
+
+	private static final int FILE_MAGIC = 0x4D4E4C55; // "MNLU"
+	private static final int FILE_VERSION = 2;
+
+	private final MulticolorSourceCalculator calc;
+	private final LightSource[] sources;
+	private final int sizeX;
+	private final int sizeY;
+	private final int sizeLumi;
+	private final double maxLumi;
+
+	/**
+	 * The luminance of every source at every point of the grid, with the
+	 * source index changing fastest, then Y, then y, then x.
+	 */
+	private final float[] table;
+	
+	/**
+	 * For every grid cell, true if every corner is in the gamut and there the
+	 * calculator obtained all the requested luminance, so the cell can be
+	 * interpolated.
+	 */
+	private final boolean[] cellInterpolable;
+	
+	// Scale from the color coordinates to the grid indexes
+	private final double scaleX;
+	private final double scaleY;
+	private final double scaleLumi;
+
+	/**
+	 * Builds the table sampling the calculator on a grid of the given size
+	 */
+	public ColorLookupTable(MulticolorSourceCalculator calc, int sizeXY, int sizeLumi){
+		this(calc, sizeXY, sizeXY, sizeLumi);
+		double[] lumi = new double[sources.length];
+		int i = 0;
+		for(int ix=0; ix<sizeX; ix++){
+			double x = ix * MAX_x / (sizeX-1);
+			for(int iy=0; iy<sizeY; iy++){
+				double y = iy * MAX_y / (sizeY-1);
+				for(int iY=0; iY<sizeLumi; iY++){
+					double Ylumi = iY * maxLumi / (sizeLumi-1);
+					if(y > 0){
+						calc.getSourceLumiForColor(x, y, Ylumi, lumi);
+					} else {
+						// The chromaticity is undefined, and it isn't a visible color
+						Arrays.fill(lumi, 0);
+					}
+					for(int s=0; s<lumi.length; s++){
+						table[i++] = (float) lumi[s];
+					}
+				}
+			}
+		}
+		findInterpolableCells();
+	}
+
+	private ColorLookupTable(MulticolorSourceCalculator calc, int sizeX, int sizeY, int sizeLumi){
+		if(sizeX < 2 || sizeY < 2 || sizeLumi < 2){
+			throw new IllegalArgumentException("The grid must have at least 2 points per axis");
+		}
+		this.calc = calc;
+		this.sources = calc.getSources();
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.sizeLumi = sizeLumi;
+		double sum = 0;
+		for(LightSource source : sources){
+			sum += source.getMaxLumi();
+		}
+		this.maxLumi = sum;
+		this.table = new float[sizeX*sizeY*sizeLumi*sources.length];
+		this.cellInterpolable = new boolean[(sizeX-1)*(sizeY-1)*(sizeLumi-1)];
+		this.scaleX = (sizeX-1) / MAX_x;
+		this.scaleY = (sizeY-1) / MAX_y;
+		this.scaleLumi = (sizeLumi-1) / maxLumi;
+	}
+	
+	private void findInterpolableCells(){
+		int n = sources.length;
+		LampGamut gamut = calc.getGamut();
+		boolean[] pointComplete = new boolean[sizeX*sizeY*sizeLumi];
+		int p = 0;
+		for(int ix=0; ix<sizeX; ix++){
+			double x = ix * MAX_x / (sizeX-1);
+			for(int iy=0; iy<sizeY; iy++){
+				double y = iy * MAX_y / (sizeY-1);
+				// Out of the gamut the color is mapped, and that isn't linear
+				boolean inGamut = iy > 0 && gamut.contains(x, y);
+				for(int iY=0; iY<sizeLumi; iY++){
+					double Ylumi = iY * maxLumi / (sizeLumi-1);
+					double sum = 0;
+					for(int s=0; s<n; s++){
+						sum += table[p*n+s];
+					}
+					// The table is in float, so compare with its precision
+					pointComplete[p] = inGamut && Math.abs(sum - Ylumi) <= 1e-4 * maxLumi;
+					p++;
+				}
+			}
+		}
+		int c = 0;
+		for(int ix=0; ix<sizeX-1; ix++){
+			for(int iy=0; iy<sizeY-1; iy++){
+				for(int iY=0; iY<sizeLumi-1; iY++){
+					boolean complete = true;
+					for(int corner=0; corner<8 && complete; corner++){
+						int cx = ix + (corner & 1);
+						int cy = iy + ((corner >> 1) & 1);
+						int cY = iY + ((corner >> 2) & 1);
+						complete = pointComplete[(cx*sizeY + cy)*sizeLumi + cY];
+					}
+					cellInterpolable[c++] = complete;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the table of this calculator saved in the cache directory, or
+	 * builds it and saves it there if it isn't there yet.
+	 *
+	 * If the cache can't be read or written the table is just built.
+	 */
+	public static ColorLookupTable getCached(MulticolorSourceCalculator calc,
+			int sizeXY, int sizeLumi, File cacheDir){
+		File file = new File(cacheDir, getCacheFileName(calc.getSources(), sizeXY, sizeLumi));
+		if(file.isFile()){
+			try {
+				ColorLookupTable lut = readFile(file, calc, sizeXY, sizeLumi);
+				if(lut != null){
+					return lut;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		ColorLookupTable lut = new ColorLookupTable(calc, sizeXY, sizeLumi);
+		try {
+			cacheDir.mkdirs();
+			lut.writeFile(file);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return lut;
+	}
+
+
+	/**
+	 * Calculates the luminances of the light sources for a color, like
+	 * {@link MulticolorSourceCalculator#getSourceLumiForColor(double, double, double, double[])}.
+	 * Colors outside the grid are clamped to its border.
+	 *
+	 * @param outLumi Where the luminance of every light source is written,
+	 * indexed like the sources of the calculator
+	 */
+	public void getSourceLumiForColor(double x, double y, double Ylumi, double[] outLumi){
+		int n = sources.length;
+
+		// Grid cell and position inside the cell on every axis
+		double fx = clamp(x * scaleX, sizeX-1);
+		double fy = clamp(y * scaleY, sizeY-1);
+		double fl = clamp(Ylumi * scaleLumi, sizeLumi-1);
+		int ix = Math.min((int) fx, sizeX-2);
+		int iy = Math.min((int) fy, sizeY-2);
+		int il = Math.min((int) fl, sizeLumi-2);
+		if(!cellInterpolable[(ix*(sizeY-1) + iy)*(sizeLumi-1) + il]){
+			calc.getSourceLumiForColor(x, y, Ylumi, outLumi);
+			return;
+		}
+		double tx = fx - ix;
+		double ty = fy - iy;
+		double tl = fl - il;
+
+		// Offsets in the table of the corners of the cell
+		int strideL = n;
+		int strideY = sizeLumi * strideL;
+		int strideX = sizeY * strideY;
+		int o000 = ix*strideX + iy*strideY + il*strideL;
+		int o100 = o000 + strideX;
+		int o010 = o000 + strideY;
+		int o110 = o100 + strideY;
+
+		for(int s=0; s<n; s++){
+			double c00 = lerp(table[o000+s], table[o000+strideL+s], tl);
+			double c01 = lerp(table[o010+s], table[o010+strideL+s], tl);
+			double c10 = lerp(table[o100+s], table[o100+strideL+s], tl);
+			double c11 = lerp(table[o110+s], table[o110+strideL+s], tl);
+			double c0 = lerp(c00, c01, ty);
+			double c1 = lerp(c10, c11, ty);
+			outLumi[s] = lerp(c0, c1, tx);
+		}
+	}
+
+	private static double clamp(double value, double max){
+		if(value < 0){
+			return 0;
+		} else if(value > max){
+			return max;
+		}
+		return value;
+	}
+
+	private static double lerp(double a, double b, double t){
+		return a + (b - a) * t;
+	}
+
+
+	/**
+	 * The name contains a hash of everything the table depends on, so a
+	 * table of different sources is never loaded.
+	 */
+	private static String getCacheFileName(LightSource[] sources, int sizeXY, int sizeLumi){
+		long hash = FILE_VERSION;
+		hash = hash*31 + sizeXY;
+		hash = hash*31 + sizeLumi;
+		for(LightSource source : sources){
+			hash = hash*31 + Double.doubleToLongBits(source.getx());
+			hash = hash*31 + Double.doubleToLongBits(source.gety());
+			hash = hash*31 + Double.doubleToLongBits(source.getMaxLumi());
+		}
+		return "colorlut-" + Long.toHexString(hash) + ".bin";
+	}
+
+	private void writeFile(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(sizeX);
+			out.writeInt(sizeLumi);
+			out.writeInt(sources.length);
+			for(LightSource source : sources){
+				out.writeDouble(source.getx());
+				out.writeDouble(source.gety());
+				out.writeDouble(source.getMaxLumi());
+			}
+			for(int i=0; i<table.length; i++){
+				out.writeFloat(table[i]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return null if the file contains the table of different sources
+	 */
+	private static ColorLookupTable readFile(File file, MulticolorSourceCalculator calc,
+			int sizeXY, int sizeLumi) throws IOException {
+		LightSource[] sources = calc.getSources();
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if(in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION
+					|| in.readInt() != sizeXY || in.readInt() != sizeLumi
+					|| in.readInt() != sources.length){
+				return null;
+			}
+			for(LightSource source : sources){
+				if(in.readDouble() != source.getx() || in.readDouble() != source.gety()
+						|| in.readDouble() != source.getMaxLumi()){
+					return null;
+				}
+			}
+			ColorLookupTable lut = new ColorLookupTable(calc, sizeXY, sizeXY, sizeLumi);
+			for(int i=0; i<lut.table.length; i++){
+				lut.table[i] = in.readFloat();
+			}
+			lut.findInterpolableCells();
+			return lut;
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -150,6 +150,245 @@ public class ColourConverter
         return XYZtoRGB(LuvToXYZ(Luv,wp));
     }
     
+    // ------------------------------- Bulk conversion methods ---------------------------------
+    
+    // These convert arrays of colours stored as one array per component, in a single loop and
+    // without allocating anything. The output arrays can be the same as the input arrays, so
+    // that a buffer can be converted in place. Only the first len elements are converted.
+    
+    /** Converts colours in Lab space to XYZ space. See {@link #LABtoXYZ(double[], WhitePoint)}.
+     *  @param L CIELab L values, scaled between 0 and 100.
+     *  @param a CIELab a values, scaled between -100 and 100.
+     *  @param b CIELab b values, scaled between -100 and 100.
+     *  @param X Where the X values are written.
+     *  @param Y Where the Y values are written.
+     *  @param Z Where the Z values are written.
+     *  @param len Number of colours to convert.
+     *  @param wp Whitepoint used to perform the transformation.
+     */
+    public static void LABtoXYZ(double[] L, double[] a, double[] b, 
+                                double[] X, double[] Y, double[] Z, int len, WhitePoint wp)
+    {
+        double xn = wp.getTristimulus()[0];
+        double yn = wp.getTristimulus()[1];
+        double zn = wp.getTristimulus()[2];
+        
+        for (int i=0; i<len; i++)
+        {
+            double y = (L[i] + 16.0) / 116.0;
+            double x = (a[i] / 500.0) + y;
+            double z = y - (b[i] / 200.0);
+            X[i] = labInverseCompand(x)*xn;
+            Y[i] = labInverseCompand(y)*yn;
+            Z[i] = labInverseCompand(z)*zn;
+        }
+    }
+    
+    /** Converts colours in XYZ space into CIELab space. See {@link #XYZtoLAB(double[], WhitePoint)}.
+     *  @param X Colour X values.
+     *  @param Y Colour Y values.
+     *  @param Z Colour Z values.
+     *  @param L Where the CIELab L values are written.
+     *  @param a Where the CIELab a values are written.
+     *  @param b Where the CIELab b values are written.
+     *  @param len Number of colours to convert.
+     *  @param wp Whitepoint used for the transformation.
+     */
+    public static void XYZtoLAB(double[] X, double[] Y, double[] Z, 
+                                double[] L, double[] a, double[] b, int len, WhitePoint wp)
+    {
+        double xn = wp.getTristimulus()[0];
+        double yn = wp.getTristimulus()[1];
+        double zn = wp.getTristimulus()[2];
+        
+        for (int i=0; i<len; i++)
+        {
+            double x = labCompand(X[i] / xn);
+            double y = labCompand(Y[i] / yn);
+            double z = labCompand(Z[i] / zn);
+            L[i] = 116*y - 16;
+            a[i] = 500*(x-y);
+            b[i] = 200*(y-z);
+        }
+    }
+    
+    /** Converts colours in XYZ space into CIELuv space. See {@link #XYZtoLuv(double[], WhitePoint)}.
+     *  @param X Colour X values.
+     *  @param Y Colour Y values.
+     *  @param Z Colour Z values.
+     *  @param L Where the CIELuv L values are written.
+     *  @param u Where the CIELuv u values are written.
+     *  @param v Where the CIELuv v values are written.
+     *  @param len Number of colours to convert.
+     *  @param wp Whitepoint used for the transformation.
+     */
+    public static void XYZtoLuv(double[] X, double[] Y, double[] Z, 
+                                double[] L, double[] u, double[] v, int len, WhitePoint wp)
+    {
+        double xn = wp.getTristimulus()[0];
+        double yn = wp.getTristimulus()[1];
+        double zn = wp.getTristimulus()[2];
+        double unPrime = 4*xn / (xn + 15*yn + 3*zn);
+        double vnPrime = 9*yn / (xn + 15*yn + 3*zn);
+        
+        for (int i=0; i<len; i++)
+        {
+            double x = X[i];
+            double y = Y[i];
+            double denom = x + 15*y + 3*Z[i];
+            double uPrime = 4*x / denom;
+            double vPrime = 9*y / denom;
+            double yr = y / yn;
+            double l;
+            if (yr > 0.008856452)    // (6/29)^3
+            {
+                l = 116*Math.cbrt(yr) - 16;
+            }
+            else
+            {
+                l = 903.2962963*yr;  // (29/3)^3
+            }
+            L[i] = l;
+            u[i] = 13*l*(uPrime-unPrime);
+            v[i] = 13*l*(vPrime-vnPrime);
+        }
+    }
+    
+    /** Converts colours in CIELuv space to XYZ space. See {@link #LuvToXYZ(double[], WhitePoint)}.
+     *  @param L CIELuv L values.
+     *  @param u CIELuv u values.
+     *  @param v CIELuv v values.
+     *  @param X Where the X values are written.
+     *  @param Y Where the Y values are written.
+     *  @param Z Where the Z values are written.
+     *  @param len Number of colours to convert.
+     *  @param wp Whitepoint used for the transformation.
+     */
+    public static void LuvToXYZ(double[] L, double[] u, double[] v, 
+                                double[] X, double[] Y, double[] Z, int len, WhitePoint wp)
+    {
+        double xn = wp.getTristimulus()[0];
+        double yn = wp.getTristimulus()[1];
+        double zn = wp.getTristimulus()[2];
+        double unPrime = (4*xn)/(xn + 15*yn + 3*zn);
+        double vnPrime = (9*yn)/(xn + 15*yn + 3*zn);
+        
+        for (int i=0; i<len; i++)
+        {
+            double l = L[i];
+            double uPrime = u[i]/(13*l) + unPrime;
+            double vPrime = v[i]/(13*l) + vnPrime;
+            double y;
+            if (l <= 8)
+            {
+                y = yn*l*0.001107056;      // (3/29)^3; 
+            }
+            else
+            {
+                double f = (l+16)/116;
+                y = yn*f*f*f;
+            }
+            X[i] = y*(9*uPrime/(4*vPrime));
+            Y[i] = y;
+            Z[i] = y*((12-3*uPrime - 20*vPrime)/(4*vPrime));
+        }
+    }
+    
+    /** Converts colours in XYZ space into sRGB. See {@link #XYZtoRGB(double[])}. Note that the RGB
+     *  values can be out of the 0-1 range for out-of-gamut colours.
+     *  @param X Colour X values.
+     *  @param Y Colour Y values.
+     *  @param Z Colour Z values.
+     *  @param r Where the red values are written.
+     *  @param g Where the green values are written.
+     *  @param b Where the blue values are written.
+     *  @param len Number of colours to convert.
+     */
+    public static void XYZtoRGB(double[] X, double[] Y, double[] Z, 
+                                double[] r, double[] g, double[] b, int len)
+    {
+        for (int i=0; i<len; i++)
+        {
+            double x = X[i]/100.0;
+            double y = Y[i]/100.0;
+            double z = Z[i]/100.0;
+            double rl = (x * M_INV[0][0]) + (y * M_INV[0][1]) + (z * M_INV[0][2]);
+            double gl = (x * M_INV[1][0]) + (y * M_INV[1][1]) + (z * M_INV[1][2]);
+            double bl = (x * M_INV[2][0]) + (y * M_INV[2][1]) + (z * M_INV[2][2]);
+            r[i] = srgbCompand(rl);
+            g[i] = srgbCompand(gl);
+            b[i] = srgbCompand(bl);
+        }
+    }
+    
+    /** Converts colours in Lab space into sRGB. See {@link #labToRGB(double, double, double, WhitePoint)}.
+     *  Note that the RGB values can be out of the 0-1 range for out-of-gamut colours.
+     *  @param L CIELab L values, scaled between 0 and 100.
+     *  @param a CIELab a values, scaled between -100 and 100.
+     *  @param b CIELab b values, scaled between -100 and 100.
+     *  @param red Where the red values are written.
+     *  @param green Where the green values are written.
+     *  @param blue Where the blue values are written.
+     *  @param len Number of colours to convert.
+     *  @param wp Whitepoint used to perform the transformation.
+     */
+    public static void labToRGB(double[] L, double[] a, double[] b, 
+                                double[] red, double[] green, double[] blue, int len, WhitePoint wp)
+    {
+        LABtoXYZ(L, a, b, red, green, blue, len, wp);
+        XYZtoRGB(red, green, blue, red, green, blue, len);
+    }
+    
+    /** Converts colours in CIELuv space into sRGB. See {@link #luvToRGB(double, double, double, WhitePoint)}.
+     *  Note that the RGB values can be out of the 0-1 range for out-of-gamut colours.
+     *  @param L CIELuv L values.
+     *  @param u CIELuv u values.
+     *  @param v CIELuv v values.
+     *  @param red Where the red values are written.
+     *  @param green Where the green values are written.
+     *  @param blue Where the blue values are written.
+     *  @param len Number of colours to convert.
+     *  @param wp Whitepoint used to perform the transformation.
+     */
+    public static void luvToRGB(double[] L, double[] u, double[] v, 
+                                double[] red, double[] green, double[] blue, int len, WhitePoint wp)
+    {
+        LuvToXYZ(L, u, v, red, green, blue, len, wp);
+        XYZtoRGB(red, green, blue, red, green, blue, len);
+    }
+    
+    /** Packs sRGB colours into 0xAARRGGBB pixels, like <code>Color.getRGB()</code>. Out-of-gamut colours
+     *  are replaced with the given pixel value.
+     *  @param r Red values scaled between 0-1.
+     *  @param g Green values scaled between 0-1.
+     *  @param b Blue values scaled between 0-1.
+     *  @param pixels Where the pixels are written.
+     *  @param offset Index in pixels of the first colour.
+     *  @param len Number of colours to pack.
+     *  @param outOfGamutPixel Pixel written for colours with a component out of the 0-1 range.
+     */
+    public static void RGBtoPixels(double[] r, double[] g, double[] b, 
+                                   int[] pixels, int offset, int len, int outOfGamutPixel)
+    {
+        for (int i=0; i<len; i++)
+        {
+            double rv = r[i];
+            double gv = g[i];
+            double bv = b[i];
+            if ((rv < 0) || (gv < 0) || (bv < 0) || (rv > 1) || (gv > 1) || (bv > 1))
+            {
+                pixels[offset+i] = outOfGamutPixel;
+            }
+            else
+            {
+                // Same rounding as the float constructor of Color.
+                pixels[offset+i] = 0xFF000000 | ((int)(rv*255+0.5) << 16) 
+                                              | ((int)(gv*255+0.5) << 8) 
+                                              |  (int)(bv*255+0.5);
+            }
+        }
+    }
+    
     // --------------------------------- Package methods ----------------------------------
     
     /** Converts the colour represented in XYZ space into an sRGB triplet. Note that the RGB values
@@ -171,32 +410,7 @@ public class ColourConverter
         double b = (x * M_INV[2][0]) + (y * M_INV[2][1]) + (z * M_INV[2][2]);
 
         // Assume sRGB
-        if (r > 0.0031308) 
-        {
-            r = (1.055*Math.pow(r,0.4166666667)) - 0.055;
-        }
-        else 
-        {
-            r *= 12.92;
-        }
-        if (g > 0.0031308) 
-        {
-            g = (1.055 * Math.pow(g,0.4166666667)) - 0.055;
-        }
-        else 
-        {
-            g *= 12.92;
-        }
-        if (b > 0.0031308) 
-        {
-            b = (1.055 * Math.pow(b,0.4166666667)) - 0.055;
-        }
-        else 
-        {
-            b *= 12.92;
-        }
-        
-        return new double[] {r,g,b};
+        return new double[] {srgbCompand(r),srgbCompand(g),srgbCompand(b)};
     }
     
     /** Converts colours in Lab space to XYZ space.
@@ -269,30 +483,9 @@ public class ColourConverter
         double b = rgb[2];
 
         // assume sRGB
-        if (r <= 0.04045) 
-        {
-            r = r / 12.92;
-        }
-        else 
-        {
-            r = Math.pow(((r + 0.055) / 1.055), 2.4);
-        }
-        if (g <= 0.04045) 
-        {
-            g = g / 12.92;
-        }
-        else 
-        {
-            g = Math.pow(((g + 0.055) / 1.055), 2.4);
-        }
-        if (b <= 0.04045) 
-        {
-            b = b / 12.92;
-        }
-        else 
-        {
-            b = Math.pow(((b + 0.055) / 1.055), 2.4);
-        }
+        r = SrgbGamma.toLinear(r);
+        g = SrgbGamma.toLinear(g);
+        b = SrgbGamma.toLinear(b);
 
         r *= 100.0;
         g *= 100.0;
@@ -597,7 +790,7 @@ public class ColourConverter
      *  @param wp Whitepoint used for the transformation.
      *  @return Triplet of CIELab values in the order <i>L</i>, <i>a</i> and <i>b</i>.
      */
-    static double[] XYZtoLAB(double[] XYZ, WhitePoint wp)
+    public static double[] XYZtoLAB(double[] XYZ, WhitePoint wp)
     {
         double x = XYZ[0] / wp.getTristimulus()[0];
         double y = XYZ[1] / wp.getTristimulus()[1];
@@ -629,5 +822,34 @@ public class ColourConverter
         }
 
         return new double[] {116*y - 16, 500*(x-y), 200*(y-z)};
-    }  
+    }
+    
+    // --------------------------------- Private methods ----------------------------------
+    
+    /** The sRGB gamma companding of a linear component. See {@link SrgbGamma} for its accuracy. */
+    private static double srgbCompand(double c)
+    {
+        return SrgbGamma.fromLinear(c);
+    }
+    
+    /** The nonlinear function of CIELab of a component relative to the whitepoint. */
+    private static double labCompand(double t)
+    {
+        if (t > 0.008856) 
+        {
+            return Math.cbrt(t);
+        }
+        return (7.787 * t) + (16.0 / 116.0);
+    }
+    
+    /** The inverse of {@link #labCompand(double)}. */
+    private static double labInverseCompand(double f)
+    {
+        double f3 = f*f*f;
+        if (f3 > 0.008856) 
+        {
+            return f3;
+        }
+        return (f - (16.0 / 116.0)) / 7.787;
+    }
 }
\ No newline at end of file
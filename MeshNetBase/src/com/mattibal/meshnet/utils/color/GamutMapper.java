@@ -0,0 +1,400 @@
+package com.mattibal.meshnet.utils.color;
+
+import java.util.Arrays;
+
+import com.mattibal.meshnet.utils.color.ColourConverter.WhitePoint;
+
+/**
+ * Finds the boundary of the sRGB gamut in CIELab, CIELuv and CIE LCh (the
+ * cylindrical form of Luv), and maps out of gamut colors inside it.
+ *
+ * The boundary is computed in closed form, like HuslConverter.maxChroma
+ * does: at a given lightness and hue, every sRGB component is a polynomial
+ * of the chroma (of the first degree in Luv, and piecewise of the third in
+ * Lab), so the chroma where a component reaches 0 or 1 is a root of it.
+ *
+ * Out of gamut colors are mapped keeping their lightness and hue, and
+ * reducing their chroma to the maximum one in the gamut.
+ */
+public class GamutMapper {
+
+	/** Where the CIELab function switches from the cubic to the linear segment */
+	private static final double LAB_CUBE_ROOT_THRESHOLD = Math.cbrt(0.008856);
+
+	/** Upper limit of the chroma searched, the sRGB colors are all well within it */
+	private static final double MAX_CHROMA = 1000;
+
+	private GamutMapper(){
+		// Only static methods
+	}
+
+
+	/**
+	 * @param L CIELuv lightness, 0-100
+	 * @param hue CIE LCh hue in degrees
+	 * @return The max CIELuv chroma of a color in the sRGB gamut with this
+	 * lightness and hue, or 0 if even the grey is out of gamut
+	 */
+	public static double maxChromaLuv(double L, double hue, WhitePoint wp){
+		if(L <= 0 || L >= 100){
+			return 0;
+		}
+		double[] white = wp.getTristimulus();
+		double xn = white[0], yn = white[1], zn = white[2];
+		double unPrime = (4*xn)/(xn + 15*yn + 3*zn);
+		double vnPrime = (9*yn)/(xn + 15*yn + 3*zn);
+		// The same Y as ColourConverter.LuvToXYZ, scaled like XYZtoRGB
+		double Y;
+		if(L <= 8){
+			Y = yn*L*0.001107056 / 100.0;
+		} else {
+			double f = (L+16)/116;
+			Y = yn*f*f*f / 100.0;
+		}
+		double hueRad = Math.toRadians(hue);
+		double cosH = Math.cos(hueRad);
+		double sinH = Math.sin(hueRad);
+		double duv = 1 / (13*L); // u' and v' change by this for a unit of chroma
+
+		// Beyond this chroma v' would be negative, that is not a color
+		double maxChroma = MAX_CHROMA;
+		if(sinH < 0){
+			maxChroma = Math.min(maxChroma, -vnPrime / (sinH*duv));
+		}
+
+		// With X = Y*9u'/(4v') and Z = Y*(12-3u'-20v')/(4v'), a component c
+		// multiplied by 4v' is linear in u' and v', so c = t is a line
+		double result = maxChroma;
+		for(int i=0; i<3; i++){
+			double m1 = ColourConverter.M_INV[i][0];
+			double m2 = ColourConverter.M_INV[i][1];
+			double m3 = ColourConverter.M_INV[i][2];
+			for(int t=0; t<=1; t++){
+				double ku = Y*(9*m1 - 3*m3);
+				double kv = Y*(4*m2 - 20*m3) - 4*t;
+				double k0 = 12*Y*m3;
+				double a = k0 + ku*unPrime + kv*vnPrime;
+				double b = (ku*cosH + kv*sinH) * duv;
+				if(b != 0){
+					double C = -a / b;
+					if(C >= 0 && C < result){
+						result = C;
+					}
+				}
+			}
+		}
+		return isLuvInGamut(L, 0, 0, wp) ? result : 0;
+	}
+
+	/**
+	 * @param L CIELab lightness, 0-100
+	 * @param hue CIELab hue in degrees, that is atan2(b, a)
+	 * @return The max CIELab chroma of a color in the sRGB gamut with this
+	 * lightness and hue, or 0 if even the grey is out of gamut
+	 */
+	public static double maxChromaLab(double L, double hue, WhitePoint wp){
+		if(L <= 0 || L >= 100){
+			return 0;
+		}
+		double[] white = wp.getTristimulus();
+		double fy = (L + 16.0) / 116.0;
+		double hueRad = Math.toRadians(hue);
+		// Along the hue, fx = fy + alpha*C and fz = fy + beta*C
+		double alpha = Math.cos(hueRad) / 500.0;
+		double beta = -Math.sin(hueRad) / 200.0;
+		double Y = labInverse(fy) * white[1] / 100.0;
+
+		// fx and fz switch between the cubic and linear segments at these chromas
+		double[] bounds = {0, breakChroma(fy, alpha), breakChroma(fy, beta), MAX_CHROMA};
+		Arrays.sort(bounds);
+
+		double[] fxPoly = new double[4];
+		double[] fzPoly = new double[4];
+		double[] poly = new double[4];
+		for(int k=0; k<bounds.length-1; k++){
+			double lo = bounds[k];
+			double hi = bounds[k+1];
+			if(hi <= lo){
+				continue;
+			}
+			double mid = (lo + hi) / 2;
+			labInversePoly(fy, alpha, fy + alpha*mid, white[0] / 100.0, fxPoly);
+			labInversePoly(fy, beta, fy + beta*mid, white[2] / 100.0, fzPoly);
+			// The first boundary crossed in this segment is the answer
+			double found = hi;
+			for(int i=0; i<3; i++){
+				double m1 = ColourConverter.M_INV[i][0];
+				double m2 = ColourConverter.M_INV[i][1];
+				double m3 = ColourConverter.M_INV[i][2];
+				for(int t=0; t<=1; t++){
+					for(int d=0; d<4; d++){
+						poly[d] = m1*fxPoly[d] + m3*fzPoly[d];
+					}
+					poly[0] += m2*Y - t;
+					found = Math.min(found, smallestRoot(poly, lo, found));
+				}
+			}
+			if(found < hi){
+				return isLabInGamut(L, 0, 0, wp) ? found : 0;
+			}
+		}
+		return isLabInGamut(L, 0, 0, wp) ? MAX_CHROMA : 0;
+	}
+
+
+	/**
+	 * @return A CIELab color in the sRGB gamut with the same lightness and
+	 * hue as the given one, and chroma reduced if it's out of gamut
+	 */
+	public static double[] clampLab(double[] Lab, WhitePoint wp){
+		double L = Math.max(0, Math.min(100, Lab[0]));
+		double C = Math.sqrt(Lab[1]*Lab[1] + Lab[2]*Lab[2]);
+		double hue = Math.toDegrees(Math.atan2(Lab[2], Lab[1]));
+		double maxC = maxChromaLab(L, hue, wp);
+		if(C <= maxC){
+			return new double[] {L, Lab[1], Lab[2]};
+		}
+		double scale = maxC / C;
+		return new double[] {L, Lab[1]*scale, Lab[2]*scale};
+	}
+
+	/**
+	 * @return A CIELuv color in the sRGB gamut with the same lightness and
+	 * hue as the given one, and chroma reduced if it's out of gamut
+	 */
+	public static double[] clampLuv(double[] Luv, WhitePoint wp){
+		double L = Math.max(0, Math.min(100, Luv[0]));
+		double C = Math.sqrt(Luv[1]*Luv[1] + Luv[2]*Luv[2]);
+		double hue = Math.toDegrees(Math.atan2(Luv[2], Luv[1]));
+		double maxC = maxChromaLuv(L, hue, wp);
+		if(C <= maxC){
+			return new double[] {L, Luv[1], Luv[2]};
+		}
+		double scale = maxC / C;
+		return new double[] {L, Luv[1]*scale, Luv[2]*scale};
+	}
+
+	/**
+	 * @param LCh CIE LCh (of CIELuv) color, with the hue in degrees
+	 * @return The same color, with the chroma reduced if it's out of gamut
+	 */
+	public static double[] clampLCh(double[] LCh, WhitePoint wp){
+		double L = Math.max(0, Math.min(100, LCh[0]));
+		double maxC = maxChromaLuv(L, LCh[2], wp);
+		return new double[] {L, Math.min(LCh[1], maxC), LCh[2]};
+	}
+
+
+	/**
+	 * Finds the most saturated sRGB color with the given CIELuv hue. It is
+	 * on an edge of the RGB cube where a component is 1, another is 0, and
+	 * the hue is linear in the third one, so it is found directly.
+	 *
+	 * @param hue Hue in degrees
+	 * @return The color as sRGB components, 0-1
+	 */
+	public static double[] getMostSaturatedColour(double hue, WhitePoint wp){
+		double[] white = wp.getTristimulus();
+		double xn = white[0], yn = white[1], zn = white[2];
+		double unPrime = (4*xn)/(xn + 15*yn + 3*zn);
+		double vnPrime = (9*yn)/(xn + 15*yn + 3*zn);
+		double hueRad = Math.toRadians(hue);
+		double cosH = Math.cos(hueRad);
+		double sinH = Math.sin(hueRad);
+
+		// A linear combination of the XYZ that is 0 for the colors of this
+		// hue or of the opposite one: (v'-vn')cosH - (u'-un')sinH times
+		// X+15Y+3Z. For every sRGB linear component it's the weight in it.
+		double[] w = new double[3];
+		for(int c=0; c<3; c++){
+			double X = ColourConverter.M[0][c];
+			double Y = ColourConverter.M[1][c];
+			double Z = ColourConverter.M[2][c];
+			double D = X + 15*Y + 3*Z;
+			w[c] = (9*Y - vnPrime*D)*cosH - (4*X - unPrime*D)*sinH;
+		}
+		for(int one=0; one<3; one++){
+			for(int zero=0; zero<3; zero++){
+				if(zero == one){
+					continue;
+				}
+				int free = 3 - one - zero;
+				// w[one] + t*w[free] = 0
+				if(w[free] == 0){
+					continue;
+				}
+				double t = -w[one] / w[free];
+				if(t < 0 || t > 1){
+					continue;
+				}
+				double[] rgbLinear = new double[3];
+				rgbLinear[one] = 1;
+				rgbLinear[free] = t;
+				// Check that it's this hue and not the opposite one
+				double X = 0, Y = 0, Z = 0;
+				for(int c=0; c<3; c++){
+					X += ColourConverter.M[0][c]*rgbLinear[c];
+					Y += ColourConverter.M[1][c]*rgbLinear[c];
+					Z += ColourConverter.M[2][c]*rgbLinear[c];
+				}
+				double D = X + 15*Y + 3*Z;
+				double du = 4*X/D - unPrime;
+				double dv = 9*Y/D - vnPrime;
+				if(du*cosH + dv*sinH > 0){
+					double[] rgb = new double[3];
+					rgb[one] = 1;
+					rgb[free] = SrgbGamma.fromLinear(t);
+					return rgb;
+				}
+			}
+		}
+		// Not reachable for a valid hue, all the hues are on the cube edges
+		return new double[] {0, 0, 0};
+	}
+
+
+	private static boolean isLabInGamut(double L, double a, double b, WhitePoint wp){
+		return isInGamut(ColourConverter.labToRGB(L, a, b, wp));
+	}
+
+	private static boolean isLuvInGamut(double L, double u, double v, WhitePoint wp){
+		return isInGamut(ColourConverter.luvToRGB(L, u, v, wp));
+	}
+
+	private static boolean isInGamut(double[] rgb){
+		// A little tolerance for the rounding of the white point
+		final double e = 1e-9;
+		return rgb[0] >= -e && rgb[1] >= -e && rgb[2] >= -e
+				&& rgb[0] <= 1+e && rgb[1] <= 1+e && rgb[2] <= 1+e;
+	}
+
+	/** The same inverse of the CIELab function of ColourConverter.LABtoXYZ */
+	private static double labInverse(double f){
+		double f3 = f*f*f;
+		if(f3 > 0.008856){
+			return f3;
+		}
+		return (f - (16.0 / 116.0)) / 7.787;
+	}
+
+	/**
+	 * @return The chroma where f0 + slope*C crosses the threshold of the
+	 * CIELab function, or 0 if it doesn't for positive chromas
+	 */
+	private static double breakChroma(double f0, double slope){
+		if(slope == 0){
+			return 0;
+		}
+		double C = (LAB_CUBE_ROOT_THRESHOLD - f0) / slope;
+		return C > 0 ? Math.min(C, MAX_CHROMA) : 0;
+	}
+
+	/**
+	 * Writes in poly the coefficients (from the constant one) of the inverse
+	 * CIELab function of f0 + slope*C, multiplied by scale, using the segment
+	 * of the function where fSample is.
+	 */
+	private static void labInversePoly(double f0, double slope, double fSample, double scale, double[] poly){
+		if(fSample > LAB_CUBE_ROOT_THRESHOLD){
+			poly[0] = scale * f0*f0*f0;
+			poly[1] = scale * 3*f0*f0*slope;
+			poly[2] = scale * 3*f0*slope*slope;
+			poly[3] = scale * slope*slope*slope;
+		} else {
+			poly[0] = scale * (f0 - (16.0 / 116.0)) / 7.787;
+			poly[1] = scale * slope / 7.787;
+			poly[2] = 0;
+			poly[3] = 0;
+		}
+	}
+
+	/**
+	 * @param poly Coefficients of a polynomial of degree up to 3, from the constant one
+	 * @return The smallest root in (lo, hi), or hi if there isn't any
+	 */
+	private static double smallestRoot(double[] poly, double lo, double hi){
+		double[] roots = new double[3];
+		int n = solveCubic(poly[3], poly[2], poly[1], poly[0], roots);
+		double result = hi;
+		for(int i=0; i<n; i++){
+			double r = polishRoot(poly, roots[i]);
+			if(r > lo && r < result){
+				result = r;
+			}
+		}
+		return result;
+	}
+
+	/** A couple of Newton steps, the closed form loses some precision */
+	private static double polishRoot(double[] poly, double x){
+		for(int i=0; i<2; i++){
+			double f = ((poly[3]*x + poly[2])*x + poly[1])*x + poly[0];
+			double df = (3*poly[3]*x + 2*poly[2])*x + poly[1];
+			if(df == 0){
+				break;
+			}
+			x -= f / df;
+		}
+		return x;
+	}
+
+	/**
+	 * Finds the real roots of a*x^3 + b*x^2 + c*x + d
+	 *
+	 * @return The number of roots written in roots
+	 */
+	static int solveCubic(double a, double b, double c, double d, double[] roots){
+		double scale = Math.max(Math.max(Math.abs(a), Math.abs(b)), Math.max(Math.abs(c), Math.abs(d)));
+		if(scale == 0){
+			return 0;
+		}
+		if(Math.abs(a) <= 1e-14 * scale){
+			// Quadratic, or lower
+			if(Math.abs(b) <= 1e-14 * scale){
+				if(c == 0){
+					return 0;
+				}
+				roots[0] = -d / c;
+				return 1;
+			}
+			double disc = c*c - 4*b*d;
+			if(disc < 0){
+				return 0;
+			}
+			double sq = Math.sqrt(disc);
+			// Numerically stable form of the quadratic formula
+			double q = -0.5 * (c + (c >= 0 ? sq : -sq));
+			int n = 0;
+			if(q != 0){
+				roots[n++] = d / q;
+			}
+			roots[n++] = q / b;
+			return n;
+		}
+		// Depressed cubic t^3 + p*t + q with x = t - b/(3a)
+		double bn = b / a, cn = c / a, dn = d / a;
+		double shift = bn / 3;
+		double p = cn - bn*bn/3;
+		double q = 2*bn*bn*bn/27 - bn*cn/3 + dn;
+		double disc = q*q/4 + p*p*p/27;
+		if(disc > 0){
+			double sq = Math.sqrt(disc);
+			roots[0] = Math.cbrt(-q/2 + sq) + Math.cbrt(-q/2 - sq) - shift;
+			return 1;
+		}
+		if(p == 0){
+			roots[0] = -shift;
+			return 1;
+		}
+		// Three real roots, trigonometric form
+		double m = 2 * Math.sqrt(-p/3);
+		double arg = 3*q / (p*m);
+		arg = Math.max(-1, Math.min(1, arg));
+		double theta = Math.acos(arg) / 3;
+		for(int k=0; k<3; k++){
+			roots[k] = m * Math.cos(theta - 2*Math.PI*k/3) - shift;
+		}
+		return 3;
+	}
+
+}
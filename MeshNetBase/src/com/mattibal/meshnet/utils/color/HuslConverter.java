@@ -110,22 +110,12 @@ public class HuslConverter {
 
 	private static double fromLinear( double c )
 	{
-		if (c <= 0.0031308) {
-			return 12.92f * c;
-		} else {
-			return (double) (1.055 * Math.pow(c, 1 / 2.4f) - 0.055);
-		}
+		return SrgbGamma.fromLinear(c);
 	}
 
 	private static double toLinear( double c )
 	{
-		double a = 0.055f;
-
-		if (c > 0.04045) {
-			return (double) (Math.pow((c + a) / (1 + a), 2.4f));
-		} else {
-			return (double) (c / 12.92);
-		}
+		return SrgbGamma.toLinear(c);
 	}
 
 	private static double[] rgbPrepare( double tuple[] )
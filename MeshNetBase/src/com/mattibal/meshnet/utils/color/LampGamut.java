@@ -0,0 +1,223 @@
+package com.mattibal.meshnet.utils.color;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The gamut of a lamp made with a set of light sources: the chromaticities
+ * that can be obtained mixing their light, that are the convex hull of the
+ * chromaticities of the sources.
+ *
+ * The hull is computed in the CIE 1976 u'v' diagram, where the distances
+ * are much closer to the perceived color differences than in the xy one,
+ * and colors out of the gamut are mapped to the nearest chromaticity in
+ * the gamut in u'v'. The xy to u'v' transformation keeps lines straight,
+ * so the hull has the same vertices in both diagrams.
+ */
+public class LampGamut {
+
+	/** Mapped colors are moved this much inside the hull, in u'v' */
+	private static final double INSIDE_MARGIN = 1e-9;
+
+	// The vertices of the hull in counterclockwise order
+	private final double[] hullU;
+	private final double[] hullV;
+	private final double[] hullX;
+	private final double[] hullY;
+
+	// The average of the vertices, that is inside the hull
+	private final double centerU;
+	private final double centerV;
+
+
+	public LampGamut(LightSource[] sources){
+		double[][] points = new double[sources.length][];
+		for(int i=0; i<sources.length; i++){
+			double x = sources[i].getx();
+			double y = sources[i].gety();
+			points[i] = new double[] {xyToU(x, y), xyToV(x, y), x, y};
+		}
+		double[][] hull = convexHull(points);
+		int n = hull.length;
+		hullU = new double[n];
+		hullV = new double[n];
+		hullX = new double[n];
+		hullY = new double[n];
+		double su = 0, sv = 0;
+		for(int i=0; i<n; i++){
+			hullU[i] = hull[i][0];
+			hullV[i] = hull[i][1];
+			hullX[i] = hull[i][2];
+			hullY[i] = hull[i][3];
+			su += hullU[i];
+			sv += hullV[i];
+		}
+		centerU = n > 0 ? su / n : 0;
+		centerV = n > 0 ? sv / n : 0;
+	}
+
+
+	/** @return The number of vertices of the hull */
+	public int getNumVertices(){
+		return hullU.length;
+	}
+
+	/** @return The x chromaticity of a vertex of the hull, in counterclockwise order */
+	public double getVertexx(int index){
+		return hullX[index];
+	}
+
+	/** @return The y chromaticity of a vertex of the hull, in counterclockwise order */
+	public double getVertexy(int index){
+		return hullY[index];
+	}
+
+	/**
+	 * @return true if the lamp can produce the chromaticity (x,y). It takes
+	 * a time logarithmic in the number of sources.
+	 */
+	public boolean contains(double x, double y){
+		return containsUV(xyToU(x, y), xyToV(x, y));
+	}
+
+	/**
+	 * Finds the chromaticity in the gamut nearest to (x,y) in the u'v'
+	 * diagram, that is (x,y) itself if it's in the gamut.
+	 *
+	 * @param outxy Where the x and y of the chromaticity found are written
+	 */
+	public void mapToGamut(double x, double y, double[] outxy){
+		double u = xyToU(x, y);
+		double v = xyToV(x, y);
+		if(containsUV(u, v) || hullU.length == 0){
+			outxy[0] = x;
+			outxy[1] = y;
+			return;
+		}
+		// The nearest point is on one of the edges
+		int n = hullU.length;
+		double bestU = hullU[0], bestV = hullV[0];
+		double bestDist = Double.POSITIVE_INFINITY;
+		for(int i=0; i<n; i++){
+			double au = hullU[i], av = hullV[i];
+			double bu = hullU[(i+1) % n], bv = hullV[(i+1) % n];
+			double du = bu - au, dv = bv - av;
+			double len2 = du*du + dv*dv;
+			double t = len2 > 0 ? ((u-au)*du + (v-av)*dv) / len2 : 0;
+			t = Math.max(0, Math.min(1, t));
+			double pu = au + t*du;
+			double pv = av + t*dv;
+			double dist = (u-pu)*(u-pu) + (v-pv)*(v-pv);
+			if(dist < bestDist){
+				bestDist = dist;
+				bestU = pu;
+				bestV = pv;
+			}
+		}
+		// Move it a bit inside, so that rounding errors don't put it out again
+		double cu = centerU - bestU, cv = centerV - bestV;
+		double clen = Math.sqrt(cu*cu + cv*cv);
+		if(clen > INSIDE_MARGIN){
+			bestU += cu / clen * INSIDE_MARGIN;
+			bestV += cv / clen * INSIDE_MARGIN;
+		}
+		outxy[0] = uvToX(bestU, bestV);
+		outxy[1] = uvToY(bestU, bestV);
+	}
+
+
+	private boolean containsUV(double u, double v){
+		int n = hullU.length;
+		if(n < 3){
+			return false;
+		}
+		// Find with a binary search the wedge from vertex 0 where the point is
+		double pu = u - hullU[0];
+		double pv = v - hullV[0];
+		if(cross(hullU[1]-hullU[0], hullV[1]-hullV[0], pu, pv) < -INSIDE_MARGIN*INSIDE_MARGIN
+				|| cross(hullU[n-1]-hullU[0], hullV[n-1]-hullV[0], pu, pv) > INSIDE_MARGIN*INSIDE_MARGIN){
+			return false;
+		}
+		int lo = 1, hi = n-1;
+		while(hi - lo > 1){
+			int mid = (lo + hi) / 2;
+			if(cross(hullU[mid]-hullU[0], hullV[mid]-hullV[0], pu, pv) >= 0){
+				lo = mid;
+			} else {
+				hi = mid;
+			}
+		}
+		// Then check that it's on the inner side of the edge of the wedge
+		return cross(hullU[hi]-hullU[lo], hullV[hi]-hullV[lo],
+				u-hullU[lo], v-hullV[lo]) >= -INSIDE_MARGIN*INSIDE_MARGIN;
+	}
+
+	private static double cross(double au, double av, double bu, double bv){
+		return au*bv - av*bu;
+	}
+
+	/**
+	 * Andrew's monotone chain algorithm
+	 *
+	 * @param points The first two coordinates are the ones used, the others
+	 * are just kept
+	 * @return The points of the hull in counterclockwise order, without
+	 * collinear points
+	 */
+	private static double[][] convexHull(double[][] points){
+		double[][] sorted = points.clone();
+		Arrays.sort(sorted, new Comparator<double[]>() {
+			@Override
+			public int compare(double[] a, double[] b) {
+				if(a[0] != b[0]){
+					return Double.compare(a[0], b[0]);
+				}
+				return Double.compare(a[1], b[1]);
+			}
+		});
+		int n = sorted.length;
+		if(n < 3){
+			return sorted;
+		}
+		double[][] hull = new double[2*n][];
+		int k = 0;
+		// Lower hull
+		for(int i=0; i<n; i++){
+			while(k >= 2 && turn(hull[k-2], hull[k-1], sorted[i]) <= 0){
+				k--;
+			}
+			hull[k++] = sorted[i];
+		}
+		// Upper hull
+		for(int i=n-2, lower=k+1; i>=0; i--){
+			while(k >= lower && turn(hull[k-2], hull[k-1], sorted[i]) <= 0){
+				k--;
+			}
+			hull[k++] = sorted[i];
+		}
+		// The last point is the first one again
+		return Arrays.copyOf(hull, k-1);
+	}
+
+	private static double turn(double[] o, double[] a, double[] b){
+		return cross(a[0]-o[0], a[1]-o[1], b[0]-o[0], b[1]-o[1]);
+	}
+
+
+	private static double xyToU(double x, double y){
+		return 4*x / (-2*x + 12*y + 3);
+	}
+
+	private static double xyToV(double x, double y){
+		return 9*y / (-2*x + 12*y + 3);
+	}
+
+	private static double uvToX(double u, double v){
+		return 9*u / (6*u - 16*v + 12);
+	}
+
+	private static double uvToY(double u, double v){
+		return 4*v / (6*u - 16*v + 12);
+	}
+
+}
@@ -2,8 +2,6 @@ package com.mattibal.meshnet.utils.color;
 
 import java.util.HashMap;
 
-import Jama.Matrix;
-
 /**
  * This is an utility to calculate the luminances that a set of different
  * colored light source must have to generate a given color when their light
@@ -16,6 +14,9 @@ import Jama.Matrix;
  * 
  * It also can prioritize a certain light source, for example the white LED
  * in an RGBW array, that has a wider spectrum, to get a better color rendering.
+ * 
+ * Colors that the sources can't produce are replaced by the nearest
+ * chromaticity in their {@link LampGamut}.
  */
 public class MulticolorSourceCalculator {
 	
@@ -23,6 +24,27 @@ public class MulticolorSourceCalculator {
 	//private final HashSet<LightSourcesTriangle> otherTriangles = new HashSet<LightSourcesTriangle>();
 
 	private final LightSource[] sources;
+	private final LampGamut gamut;
+	
+	/** The max luminance of every source, indexed like sources */
+	private final double[] maxLumi;
+	
+	/** The indexes of the 3 sources of every triangle, in the order they are tried */
+	private final int[] triangleSources;
+	
+	/**
+	 * For every source of every triangle, 3 coefficients a, b, c: the weight
+	 * of the source in a mix of chromaticity (x,y) is a + b*x + c*y, and
+	 * its luminance is the weight divided by the sum of the weights of the
+	 * triangle, multiplied by the luminance of the mix.
+	 */
+	private final double[] triangleCoeffs;
+	
+	/**
+	 * A color on an edge of a triangle can get a luminance a bit negative,
+	 * because of rounding, down to this fraction of the luminance of the mix
+	 */
+	private static final double EDGE_TOLERANCE = 1e-12;
 	
 	/**
 	 * Generates a calculator based on the given light sources
@@ -53,7 +75,52 @@ public class MulticolorSourceCalculator {
 		}*/
 		
 		this.sources = sources;
+		this.gamut = new LampGamut(sources);
+		
+		maxLumi = new double[sources.length];
+		for(int i=0; i<sources.length; i++){
+			maxLumi[i] = sources[i].getMaxLumi();
+		}
 		
+		int n = sources.length;
+		int numTriangles = n*(n-1)*(n-2)/6;
+		triangleSources = new int[numTriangles*3];
+		triangleCoeffs = new double[numTriangles*9];
+		int t = 0;
+		for(int a=0; a < n; a++){
+			for(int b=a+1; b < n; b++){
+				for(int c=b+1; c < n; c++){
+					triangleSources[t*3] = a;
+					triangleSources[t*3+1] = b;
+					triangleSources[t*3+2] = c;
+					// The weight of each vertex is the cofactor of the last row
+					// of the matrix solved by the old implementation, that is
+					// linear in the chromaticity of the mix
+					setCofactorCoeffs(t*9, sources[b], sources[c], 1);
+					setCofactorCoeffs(t*9+3, sources[a], sources[c], -1);
+					setCofactorCoeffs(t*9+6, sources[a], sources[b], 1);
+					t++;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Set the coefficients of the weight of a vertex, given the other two
+	 * vertices j and k of the triangle.
+	 * 
+	 * The matrix has a column for every vertex, with rows (xv-x)/yv,
+	 * (yv-y)/yv and 1. The minor of columns j and k of the first two rows,
+	 * with pv=xv/yv and uv=1/yv, is (pj-pk) + x*(uk-uj) + y*(pk*uj-pj*uk)
+	 */
+	private void setCofactorCoeffs(int offset, LightSource j, LightSource k, int sign){
+		double pj = j.getx()/j.gety();
+		double uj = 1/j.gety();
+		double pk = k.getx()/k.gety();
+		double uk = 1/k.gety();
+		triangleCoeffs[offset] = sign * (pj - pk);
+		triangleCoeffs[offset+1] = sign * (uk - uj);
+		triangleCoeffs[offset+2] = sign * (pk*uj - pj*uk);
 	}
 	
 	/*
@@ -76,105 +143,114 @@ public class MulticolorSourceCalculator {
 	 * @return The luminance values of every light source
 	 */
 	public HashMap<LightSource, Double> getSourceLumiForColor(AbsoluteColor color){
-		
-		AbsoluteColor requestedColor = color;
-		
-		HashMap<LightSource, Double> residueSourceLumen = new HashMap<LightSource, Double>();
-		for(LightSource source : sources){
-			residueSourceLumen.put(source, source.getMaxLumi());
-		}
-		
-		boolean solved = false;
-		
-		// Looping through triangles
-		outerLoop:
-		for(int a=0; a < sources.length; a++){
-			for(int b=a+1; b < sources.length; b++){
-				for(int c=b+1; c < sources.length; c++){
-					// Calculate for this triangle the weights of light sources
-					LightSource[] triangSources = {sources[a], sources[b], sources[c]};
-					double[] triangResidueLumen = {residueSourceLumen.get(sources[a]),
-						residueSourceLumen.get(sources[b]), residueSourceLumen.get(sources[c])
-					};
-					double[] triangLumens = calculateTriangleLumen(triangSources, triangResidueLumen, requestedColor);
-					if(triangLumens != null){
-						// Substract residue lumens of each source of the triangle
-						residueSourceLumen.put(sources[a], residueSourceLumen.get(sources[a]) - triangLumens[0]);
-						residueSourceLumen.put(sources[b], residueSourceLumen.get(sources[b]) - triangLumens[1]);
-						residueSourceLumen.put(sources[c], residueSourceLumen.get(sources[c]) - triangLumens[2]);
-						// Substract the sum of lumen of each source from requested lumens
-						double triangleSum = triangLumens[0] + triangLumens[1] + triangLumens[2];
-						requestedColor = new AbsoluteColor(requestedColor.getChromaticity(), requestedColor.getYlumi() - triangleSum);
-						// Check if I satisfied all the requested lumens
-						if(requestedColor.getYlumi()==0){
-							solved = true;
-							break outerLoop;
-						}
-					}
-				}
-			}
-		}
-		
-		if(solved==false){
-			//return null;
-		}
+		double[] lumi = new double[sources.length];
+		getSourceLumiForColor(color.getx(), color.gety(), color.getYlumi(), lumi);
 		HashMap<LightSource, Double> output = new HashMap<LightSource, Double>();
-		for(LightSource source : sources){
-			output.put(source, source.getMaxLumi() - residueSourceLumen.get(source));
+		for(int i=0; i<sources.length; i++){
+			output.put(sources[i], lumi[i]);
 		}
 		return output;
-		
 	}
 	
 	
-	private double[] calculateTriangleLumen(LightSource[] vertices, double[] verticesResidueLumen, AbsoluteColor mixColor){
-
-		double[][] matrixVal = new double[3][3];
-
-		for(int col = 0; col<3; col++){
-			matrixVal[0][col] = (vertices[col].getx() - mixColor.getx()) / vertices[col].gety();
-			matrixVal[1][col] = (vertices[col].gety() - mixColor.gety()) / vertices[col].gety();
-			matrixVal[2][col] = 1;
+	/**
+	 * Like {@link #getSourceLumiForColor(AbsoluteColor)}, but it doesn't
+	 * allocate anything.
+	 * 
+	 * @param outLumi Where the luminance of every light source is written,
+	 * indexed like the sources passed to the constructor
+	 */
+	public void getSourceLumiForColor(double x, double y, double Ylumi, double[] outLumi){
+		
+		if(!gamut.contains(x, y) && outLumi.length >= 2){
+			// outLumi is just a buffer for the mapped chromaticity here
+			gamut.mapToGamut(x, y, outLumi);
+			x = outLumi[0];
+			y = outLumi[1];
 		}
-
-		Matrix matrix = new Matrix(matrixVal);
-		Matrix invMatrix = matrix.inverse();
-
-		// the needed luminances of the light sources to produce the color mix
-		double[] outLumi = new double[3];
-
-		for(int i=0; i<3; i++){
-			outLumi[i] = invMatrix.get(i, 2) * mixColor.getYlumi();
-			// check if the luminance is negative
-			if(outLumi[i] < 0){
-				return null;
-			}
+		
+		// Here outLumi contains the luminance already used of every source
+		for(int i=0; i<sources.length; i++){
+			outLumi[i] = 0;
 		}
-
-		// If the luminance is greater than the max lumen output of the light
-		// source, linearly scale down all the luminance values
-
-		// Calculate the needed luminance scale factor
-		double scaleFactor = 1;
-		for(int i=0; i<3; i++){
-			double lumi = outLumi[i];
-			double maxLumi = verticesResidueLumen[i];
-			if(lumi > maxLumi){
-				double myScaleFactor = maxLumi / lumi;
-				if(myScaleFactor < scaleFactor){
-					scaleFactor = myScaleFactor;
-				}
+		double requestedLumi = Ylumi;
+		
+		// Looping through triangles
+		int numTriangles = triangleSources.length/3;
+		for(int t=0; t<numTriangles; t++){
+			int co = t*9;
+			double w0 = triangleCoeffs[co] + triangleCoeffs[co+1]*x + triangleCoeffs[co+2]*y;
+			double w1 = triangleCoeffs[co+3] + triangleCoeffs[co+4]*x + triangleCoeffs[co+5]*y;
+			double w2 = triangleCoeffs[co+6] + triangleCoeffs[co+7]*x + triangleCoeffs[co+8]*y;
+			double det = w0 + w1 + w2;
+			if(det == 0){
+				continue; // Degenerate triangle, its sources are aligned
+			}
+			double scale = requestedLumi / det;
+			double l0 = w0 * scale;
+			double l1 = w1 * scale;
+			double l2 = w2 * scale;
+			// check if the luminance is negative (the color is outside the triangle)
+			double minLumi = -EDGE_TOLERANCE * requestedLumi;
+			if(l0 < minLumi || l1 < minLumi || l2 < minLumi){
+				continue;
+			}
+			// The colors on the edges of the gamut are only on edges of triangles
+			l0 = Math.max(0, l0);
+			l1 = Math.max(0, l1);
+			l2 = Math.max(0, l2);
+			
+			int s0 = triangleSources[t*3];
+			int s1 = triangleSources[t*3+1];
+			int s2 = triangleSources[t*3+2];
+			
+			// If the luminance is greater than the residue lumen output of the light
+			// source, linearly scale down all the luminance values
+			double scaleFactor = 1;
+			scaleFactor = limitScale(scaleFactor, l0, maxLumi[s0] - outLumi[s0]);
+			scaleFactor = limitScale(scaleFactor, l1, maxLumi[s1] - outLumi[s1]);
+			scaleFactor = limitScale(scaleFactor, l2, maxLumi[s2] - outLumi[s2]);
+			if(scaleFactor != 1){
+				l0 *= scaleFactor;
+				l1 *= scaleFactor;
+				l2 *= scaleFactor;
+			}
+			
+			outLumi[s0] += l0;
+			outLumi[s1] += l1;
+			outLumi[s2] += l2;
+			// Substract the sum of lumen of each source from requested lumens
+			requestedLumi -= l0 + l1 + l2;
+			// Check if I satisfied all the requested lumens
+			if(requestedLumi == 0){
+				break;
 			}
 		}
-
-		// apply the scale factor to output luminance values
-		if(scaleFactor != 1){
-			for(int i=0; i<3; i++){
-				outLumi[i] = outLumi[i] * scaleFactor;
+	}
+	
+	private static double limitScale(double scaleFactor, double lumi, double maxLumi){
+		if(lumi > maxLumi){
+			double myScaleFactor = maxLumi / lumi;
+			if(myScaleFactor < scaleFactor){
+				return myScaleFactor;
 			}
 		}
-
-		return outLumi;
+		return scaleFactor;
+	}
+	
+	/** @return The light sources, in the order used by the outLumi arrays */
+	public LightSource[] getSources(){
+		return sources.clone();
+	}
+	
+	/** @return The chromaticities that the light sources can produce */
+	public LampGamut getGamut(){
+		return gamut;
+	}
+	
+	/** @return The light source with this index in the outLumi arrays */
+	public LightSource getSource(int index){
+		return sources[index];
 	}
 
 
@@ -95,11 +95,7 @@ public class SrgbConverter{
 				temp[i] = 0.0f;
 			if (temp[i] > 1)
 				temp[i] = 1.0f;
-			if (temp[i] <= 0.00304f)
-				out[i] = temp[i] * 12.92f;
-			else
-				out[i] = 1.055f * ((float) Math.exp((1 / 2.4) * Math.log(temp[i])))
-				- 0.055f;
+			out[i] = (float) SrgbGamma.fromLinear(temp[i]);
 		}
 		return out;
 	}
@@ -115,10 +111,7 @@ public class SrgbConverter{
 		float[] temp = new float[3];
 		float[] out = new float[3];
 		for (int i = 0; i < 3; i++)
-			if (in[i] <= 0.03928f)
-				temp[i] = in[i] / 12.92f;
-			else
-				temp[i] = (float) Math.exp(2.4 * Math.log((in[i] + 0.055) / 1.055));
+			temp[i] = (float) SrgbGamma.toLinear(in[i]);
 
 		/*
 		 * Note: The numbers which were used to calculate this only had four
@@ -133,4 +126,85 @@ public class SrgbConverter{
 				+ 0.713996045725 * temp[2]);
 		return out;
 	}
+
+	/**
+	 * CIE XYZ (D50 relative) --> sRGB, for many colors at once
+	 *
+	 * Converts the first len colors, stored with an array for every
+	 * component, without allocating anything. The output arrays can be the
+	 * input arrays.
+	 */
+	public static void XYZtoRGB(float[] X, float[] Y, float[] Z,
+			float[] r, float[] g, float[] b, int len)
+	{
+		for (int i = 0; i < len; i++)
+		{
+			float x = X[i];
+			float y = Y[i];
+			float z = Z[i];
+			r[i] = compand(3.1338f * x - 1.6171f * y - 0.4907f * z);
+			g[i] = compand(-0.9785f * x + 1.9160f * y + 0.0334f * z);
+			b[i] = compand(0.0720f * x - 0.2290f * y + 1.4056f * z);
+		}
+	}
+
+	/**
+	 * 8 bit sRGB --> CIE XYZ (D50 relative)
+	 *
+	 * The components are in the 0-255 range, and linearized with a table.
+	 */
+	public static float[] RGBtoXYZ(int r, int g, int b)
+	{
+		float rl = SrgbGamma.toLinear8(r);
+		float gl = SrgbGamma.toLinear8(g);
+		float bl = SrgbGamma.toLinear8(b);
+		float[] out = new float[3];
+		out[0] = (float) (0.436063750222 * rl + 0.385149601465 * gl
+				+ 0.143086418888 * bl);
+		out[1] = (float) (0.222450894035 * rl + 0.71692584775 * gl
+				+ 0.060624511256 * bl);
+		out[2] = (float) (0.0138985186 * rl + 0.097079690112 * gl
+				+ 0.713996045725 * bl);
+		return out;
+	}
+
+	/**
+	 * sRGB --> CIE XYZ (D50 relative), for many colors at once
+	 *
+	 * Converts the first len colors, stored with an array for every
+	 * component, without allocating anything. The output arrays can be the
+	 * input arrays.
+	 */
+	public static void RGBtoXYZ(float[] r, float[] g, float[] b,
+			float[] X, float[] Y, float[] Z, int len)
+	{
+		for (int i = 0; i < len; i++)
+		{
+			double rl = linearize(r[i]);
+			double gl = linearize(g[i]);
+			double bl = linearize(b[i]);
+			X[i] = (float) (0.436063750222 * rl + 0.385149601465 * gl
+					+ 0.143086418888 * bl);
+			Y[i] = (float) (0.222450894035 * rl + 0.71692584775 * gl
+					+ 0.060624511256 * bl);
+			Z[i] = (float) (0.0138985186 * rl + 0.097079690112 * gl
+					+ 0.713996045725 * bl);
+		}
+	}
+
+	/** Clamps a linear component and applies the sRGB gamma, like XYZtoRGB */
+	private static float compand(float c)
+	{
+		if (c < 0)
+			c = 0.0f;
+		if (c > 1)
+			c = 1.0f;
+		return (float) SrgbGamma.fromLinear(c);
+	}
+
+	/** Removes the sRGB gamma from a component, like RGBtoXYZ */
+	private static float linearize(float c)
+	{
+		return (float) SrgbGamma.toLinear(c);
+	}
 }
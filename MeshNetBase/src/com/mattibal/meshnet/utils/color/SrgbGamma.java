@@ -0,0 +1,166 @@
+package com.mattibal.meshnet.utils.color;
+
+/**
+ * The sRGB transfer function (gamma), computed with lookup tables instead
+ * of a Math.pow for every color component.
+ *
+ * There are exact tables to linearize 8 and 12 bit components, and the
+ * continuous functions interpolate linearly between 4096 samples of the
+ * exact ones. Compared with the exact functions, the maximum absolute
+ * error in the 0-1 range is below 2e-5 for {@link #fromLinear(double)}
+ * (the worst case is just above the linear toe) and below 1e-7 for
+ * {@link #toLinear(double)}, that are much less than a 12 bit step.
+ * Outside the 0-1 range, where out of gamut colors end up, the exact
+ * functions are used, so the result is exact there.
+ *
+ * Running this class checks these errors, and the ones of the tables, that
+ * are only rounded to float (below 1e-7).
+ */
+public class SrgbGamma {
+
+	public static final int TABLE_BITS = 12;
+	public static final int TABLE_SIZE = 1 << TABLE_BITS;
+
+	private static final int MAX_12BIT = TABLE_SIZE - 1;
+
+	// The max errors written above, checked by main
+	private static final double TABLE_MAX_ERROR = 1e-7;
+	private static final double TO_LINEAR_MAX_ERROR = 1e-7;
+	private static final double FROM_LINEAR_MAX_ERROR = 2e-5;
+
+	/** The linear value of every 8 bit component */
+	private static final float[] LINEAR_8BIT = new float[256];
+
+	/** The linear value of every 12 bit component */
+	private static final float[] LINEAR_12BIT = new float[TABLE_SIZE];
+
+	// Samples of the exact functions, there is one more for interpolating the last step
+	private static final double[] TO_LINEAR_SAMPLES = new double[TABLE_SIZE + 1];
+	private static final double[] FROM_LINEAR_SAMPLES = new double[TABLE_SIZE + 1];
+
+	static {
+		for(int i=0; i<256; i++){
+			LINEAR_8BIT[i] = (float) toLinearExact(i / 255.0);
+		}
+		for(int i=0; i<TABLE_SIZE; i++){
+			LINEAR_12BIT[i] = (float) toLinearExact(i / (double) MAX_12BIT);
+		}
+		for(int i=0; i<=TABLE_SIZE; i++){
+			TO_LINEAR_SAMPLES[i] = toLinearExact(i / (double) TABLE_SIZE);
+			FROM_LINEAR_SAMPLES[i] = fromLinearExact(i / (double) TABLE_SIZE);
+		}
+	}
+
+	private SrgbGamma(){
+		// Only static methods
+	}
+
+
+	/**
+	 * @param c A gamma encoded 8 bit sRGB component, 0-255
+	 * @return The linear component, 0-1
+	 */
+	public static float toLinear8(int c){
+		return LINEAR_8BIT[c];
+	}
+
+	/**
+	 * @param c A gamma encoded 12 bit sRGB component, 0-4095
+	 * @return The linear component, 0-1
+	 */
+	public static float toLinear12(int c){
+		return LINEAR_12BIT[c];
+	}
+
+	/**
+	 * Removes the sRGB gamma from a component.
+	 * See the class description for the error.
+	 *
+	 * @param c A gamma encoded sRGB component, 0-1
+	 * @return The linear component
+	 */
+	public static double toLinear(double c){
+		if(c > 0 && c < 1){
+			return interpolate(TO_LINEAR_SAMPLES, c);
+		}
+		return toLinearExact(c);
+	}
+
+	/**
+	 * Applies the sRGB gamma to a linear component.
+	 * See the class description for the error.
+	 *
+	 * @param c A linear component, 0-1
+	 * @return The gamma encoded sRGB component
+	 */
+	public static double fromLinear(double c){
+		if(c > 0.0031308 && c < 1){
+			return interpolate(FROM_LINEAR_SAMPLES, c);
+		}
+		// The linear toe is cheap and interpolating near it has the largest error
+		return fromLinearExact(c);
+	}
+
+	private static double interpolate(double[] samples, double c){
+		double pos = c * TABLE_SIZE;
+		int i = (int) pos;
+		double t = pos - i;
+		return samples[i] + (samples[i+1] - samples[i]) * t;
+	}
+
+
+	/**
+	 * The exact function, with the constants of IEC 61966-2-1
+	 */
+	public static double toLinearExact(double c){
+		if(c <= 0.04045){
+			return c / 12.92;
+		}
+		return Math.pow((c + 0.055) / 1.055, 2.4);
+	}
+
+	/**
+	 * The exact function, with the constants of IEC 61966-2-1
+	 */
+	public static double fromLinearExact(double c){
+		if(c <= 0.0031308){
+			return c * 12.92;
+		}
+		return 1.055 * Math.pow(c, 1 / 2.4) - 0.055;
+	}
+
+
+	/**
+	 * Compares the tables and the interpolated functions with the exact
+	 * functions, and fails if an error is bigger than the documented one.
+	 */
+	public static void main(String[] args) {
+		double err8 = 0;
+		for(int i=0; i<256; i++){
+			err8 = Math.max(err8, Math.abs(toLinear8(i) - toLinearExact(i / 255.0)));
+		}
+		double err12 = 0;
+		for(int i=0; i<TABLE_SIZE; i++){
+			err12 = Math.max(err12, Math.abs(toLinear12(i) - toLinearExact(i / (double) MAX_12BIT)));
+		}
+		// Many points between every couple of samples, where the error is largest
+		int points = TABLE_SIZE * 64;
+		double errTo = 0;
+		double errFrom = 0;
+		for(int i=0; i<=points; i++){
+			double c = i / (double) points;
+			errTo = Math.max(errTo, Math.abs(toLinear(c) - toLinearExact(c)));
+			errFrom = Math.max(errFrom, Math.abs(fromLinear(c) - fromLinearExact(c)));
+		}
+		System.out.println("toLinear8 max error: "+err8);
+		System.out.println("toLinear12 max error: "+err12);
+		System.out.println("toLinear max error: "+errTo);
+		System.out.println("fromLinear max error: "+errFrom);
+		if(err8 > TABLE_MAX_ERROR || err12 > TABLE_MAX_ERROR
+				|| errTo > TO_LINEAR_MAX_ERROR || errFrom > FROM_LINEAR_MAX_ERROR){
+			throw new IllegalStateException("The sRGB gamma is less precise than documented");
+		}
+		System.out.println("All the errors are within the documented bounds");
+	}
+
+}
@@ -0,0 +1,126 @@
+package com.mattibal.meshnet.utils.color.gui;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.mattibal.meshnet.utils.color.ColourConverter.WhitePoint;
+
+/**
+ * The rasters of the chooser images already rendered, so that going back
+ * to a lightness already seen doesn't render it again.
+ *
+ * The least recently used images are evicted when the total memory used
+ * by the rasters goes above a limit. The cache is shared by all the
+ * choosers, and it's thread safe.
+ */
+public class ChooserImageCache {
+
+	/** The default limit is a fraction of the max heap, but not more than this */
+	public static final long MAX_DEFAULT_BYTES = 32 * 1024 * 1024;
+
+	private static final ChooserImageCache shared =
+			new ChooserImageCache(Math.min(MAX_DEFAULT_BYTES, Runtime.getRuntime().maxMemory() / 16));
+
+	/** The rasters, in order from the least recently used */
+	private final LinkedHashMap<Key, int[]> rasters = new LinkedHashMap<Key, int[]>(16, 0.75f, true);
+	private final long maxBytes;
+	private long usedBytes = 0;
+
+
+	public ChooserImageCache(long maxBytes){
+		this.maxBytes = maxBytes;
+	}
+
+	public static ChooserImageCache getShared(){
+		return shared;
+	}
+
+	/**
+	 * @return The ARGB pixels of the image, that must not be modified, or
+	 * null if it isn't in the cache
+	 */
+	public synchronized int[] get(Key key){
+		return rasters.get(key);
+	}
+
+	public synchronized boolean contains(Key key){
+		return rasters.containsKey(key);
+	}
+
+	/**
+	 * @param pixels The ARGB pixels of the image, that must not be modified
+	 * anymore after this call
+	 */
+	public synchronized void put(Key key, int[] pixels){
+		int[] old = rasters.put(key, pixels);
+		if(old != null){
+			usedBytes -= getBytes(old);
+		}
+		usedBytes += getBytes(pixels);
+		// Evict the least recently used, but never the image just added
+		Iterator<Map.Entry<Key, int[]>> it = rasters.entrySet().iterator();
+		while(usedBytes > maxBytes && rasters.size() > 1){
+			Map.Entry<Key, int[]> eldest = it.next();
+			usedBytes -= getBytes(eldest.getValue());
+			it.remove();
+		}
+	}
+
+	public synchronized void clear(){
+		rasters.clear();
+		usedBytes = 0;
+	}
+
+	private static long getBytes(int[] pixels){
+		return pixels.length * 4L;
+	}
+
+
+	/**
+	 * Identifies a chooser image, with all the parameters that change its pixels
+	 */
+	public static class Key {
+
+		private final String colorSpace;
+		private final double lightness;
+		private final WhitePoint whitePoint;
+		private final int width;
+		private final int height;
+
+		/**
+		 * @param whitePoint null if the color space doesn't depend on it
+		 */
+		public Key(String colorSpace, double lightness, WhitePoint whitePoint, int width, int height){
+			this.colorSpace = colorSpace;
+			this.lightness = lightness;
+			this.whitePoint = whitePoint;
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key)){
+				return false;
+			}
+			Key other = (Key) obj;
+			return colorSpace.equals(other.colorSpace)
+					&& Double.compare(lightness, other.lightness) == 0
+					&& whitePoint == other.whitePoint
+					&& width == other.width && height == other.height;
+		}
+
+		@Override
+		public int hashCode() {
+			long l = Double.doubleToLongBits(lightness);
+			int hash = colorSpace.hashCode();
+			hash = hash*31 + (int)(l ^ (l >>> 32));
+			hash = hash*31 + (whitePoint == null ? 0 : whitePoint.hashCode());
+			hash = hash*31 + width;
+			hash = hash*31 + height;
+			return hash;
+		}
+	}
+
+}
@@ -19,6 +19,11 @@ import javax.swing.border.EmptyBorder;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
+import com.mattibal.meshnet.effects.ColorInterpolator;
+import com.mattibal.meshnet.effects.Cycle;
+import com.mattibal.meshnet.effects.Fade;
+import com.mattibal.meshnet.effects.LightEffectEngine;
+import com.mattibal.meshnet.effects.LightOutput;
 import com.mattibal.meshnet.utils.color.gui.ChromaticityJFrame.ChromaticityPanel;
 import com.sun.org.apache.xml.internal.utils.NSInfo;
 
@@ -36,7 +41,21 @@ public class ChromaticityUCSJFrame extends JFrame{
 	
 	private double currx, curry;
 	
-	private FadingThread fading = null;
+	/** The duration of a fade from a color to the other one */
+	private static final long FADE_DURATION_MS = 10000;
+	
+	/** Where the fades are played, it sets the color like a click */
+	private final LightOutput fadingOutput = new LightOutput() {
+		@Override
+		public void setColor(double x, double y, double Ylumi) {
+			currx = x;
+			curry = y;
+			curru = (4*x)/(12*y-2*x+3);
+			currv = (9*y)/(12*y-2*x+3);
+			// The luminance is still the one of the slider
+			clickedListener.onCiexyYColorSelected(currx, curry, currY);
+		}
+	};
 
 	/**
 	 * Create the frame.
@@ -105,9 +124,7 @@ public class ChromaticityUCSJFrame extends JFrame{
 
 					clickedPoint = e.getPoint();
 					
-					if(fading != null){
-						fading.interrupt();
-					}
+					LightEffectEngine.getShared().stop(fadingOutput);
 					
 					double u = ((e.getX() - CIEXY_MARGIN_SX)*CIEXY_GRAPH_WIDTH_COORD)/CIEXY_GRAPH_WIDTH_PX;
 					double v = CIEXY_GRAPH_HEIGHT_COORD-(((e.getY() - CIEXY_MARGIN_TOP)*CIEXY_GRAPH_HEIGHT_COORD)/CIEXY_GRAPH_HEIGHT_PX);
@@ -122,9 +139,12 @@ public class ChromaticityUCSJFrame extends JFrame{
 							clickedListener.onCiexyYColorSelected(currx, curry, currY);
 						}
 					} else {
-						// Start color fading
-						fading = new FadingThread(curru, currv, u, v);
-						fading.start();
+						// Start color fading, back and forth forever
+						double x = (9*u)/(6*u-16*v+12);
+						double y = (4*v)/(6*u-16*v+12);
+						Fade fade = new Fade(currx, curry, currY, x, y, currY,
+								FADE_DURATION_MS, ColorInterpolator.Space.UVY);
+						LightEffectEngine.getShared().play(fadingOutput, new Cycle(fade, true));
 					}
 				}
 				
@@ -157,57 +177,5 @@ public class ChromaticityUCSJFrame extends JFrame{
 		curry = (4*currv)/(6*curru-16*currv+12);
 	}
 	
-	
-	
-	private class FadingThread extends Thread {
-		
-		double u1, v1, u2, v2;
-		
-		long fadeDurationMs = 10000;
-		long msStep = 50;
-		double uincstep;
-		double vincstep;
-		
-		
-		public FadingThread(double u1, double v1, double u2, double v2){
-			this.u1=u1;
-			this.v1=v1;
-			this.u2=u2;
-			this.v2=v2;
-			
-			double nStep = fadeDurationMs/msStep;
-			uincstep = (Math.max(u1, u2) - Math.min(u1, u2)) / nStep;
-			vincstep = (Math.max(v1, v2) - Math.min(v1, v2)) / nStep;
-		}
-		
-		@Override
-		public void run() {
-			super.run();
-
-			try {
-				while(!Thread.interrupted()){
-
-					Thread.sleep(msStep);
-
-					curru += uincstep;
-					currv += vincstep;
-
-					if(curru > Math.max(u1, u2) || curru < Math.min(u1, u2)){
-						uincstep = 0-uincstep;
-					}
-					if(currv > Math.max(v1, v2) || currv < Math.min(v1, v2)){
-						vincstep = 0-vincstep;
-					}
-
-					updatexy();
-					clickedListener.onCiexyYColorSelected(currx, curry, currY);
-
-
-				}
-			} catch (InterruptedException e) {
-			}
-		}
-	}
-	
 
 }
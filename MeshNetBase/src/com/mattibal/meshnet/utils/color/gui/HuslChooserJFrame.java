@@ -7,7 +7,6 @@ import java.awt.Graphics;
 import java.awt.Point;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.awt.image.BufferedImage;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
@@ -16,6 +15,7 @@ import javax.swing.border.EmptyBorder;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
+import com.mattibal.meshnet.utils.color.ColourConverter;
 import com.mattibal.meshnet.utils.color.HuslConverter;
 
 public class HuslChooserJFrame extends JFrame {
@@ -48,7 +48,6 @@ public class HuslChooserJFrame extends JFrame {
 			public void stateChanged(ChangeEvent e) {
 				l = slider.getValue();
 				contentPane.drawColorChooser();
-				contentPane.repaint();
 				updateLedColor();
 			}
 		});
@@ -66,12 +65,12 @@ public class HuslChooserJFrame extends JFrame {
 
 	private class HuslChooserJPanel extends JPanel {
 
-		private BufferedImage image;
+		private final TiledImageRenderer renderer;
 
 
 
 		public HuslChooserJPanel(){
-			image = new BufferedImage(CHOOSER_WIDTH_PIXEL,CHOOSER_HEIGHT_PIXEL, BufferedImage.TYPE_INT_ARGB);
+			renderer = new TiledImageRenderer(CHOOSER_WIDTH_PIXEL, CHOOSER_HEIGHT_PIXEL, this);
 
 			drawColorChooser();
 
@@ -95,19 +94,42 @@ public class HuslChooserJFrame extends JFrame {
 			// TODO Auto-generated method stub
 			super.paintComponent(g);
 
-			g.drawImage(image, 0, 0, null);
+			g.drawImage(renderer.getImage(), 0, 0, null);
 		}
 
 
 		private void drawColorChooser(){
-			for(int x=0; x<CHOOSER_WIDTH_PIXEL; x++){
-				for(int y=0; y<CHOOSER_HEIGHT_PIXEL; y++){
-					double[] rgbdouble = HuslConverter.HUSLtoRGB(x, y, l);
-					Color color = new Color((float)rgbdouble[0], (float)rgbdouble[1], (float)rgbdouble[2]);
-					image.setRGB(x, y, color.getRGB());
+			renderer.render(getImageKey(l), getConverter(l));
+			// The next slider move is probably to a neighbour
+			for(int L = l-1; L <= l+1; L += 2){
+				if(L >= 0 && L <= 100){
+					renderer.prerender(getImageKey(L), getConverter(L));
 				}
 			}
 		}
+		
+		private ChooserImageCache.Key getImageKey(int L){
+			return new ChooserImageCache.Key("HUSL", L, null,
+					CHOOSER_WIDTH_PIXEL, CHOOSER_HEIGHT_PIXEL);
+		}
+		
+		private TiledImageRenderer.PixelConverter getConverter(final double L){
+			return new TiledImageRenderer.PixelConverter() {
+				@Override
+				public void convertPixels(int y, int x0, int step, int count, int[] argb) {
+					double[] r = new double[count];
+					double[] g = new double[count];
+					double[] b = new double[count];
+					for(int i=0; i<count; i++){
+						double[] rgb = HuslConverter.HUSLtoRGB(x0 + i*step, y, L);
+						r[i] = rgb[0];
+						g[i] = rgb[1];
+						b[i] = rgb[2];
+					}
+					ColourConverter.RGBtoPixels(r, g, b, argb, 0, count, Color.GRAY.getRGB());
+				}
+			};
+		}
 
 	}
 }
@@ -7,7 +7,6 @@ import java.awt.Graphics;
 import java.awt.Point;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.awt.image.BufferedImage;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
@@ -16,7 +15,6 @@ import javax.swing.border.EmptyBorder;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
-import com.mattibal.meshnet.utils.color.CIELab;
 import com.mattibal.meshnet.utils.color.ColourConverter;
 import com.mattibal.meshnet.utils.color.ColourConverter.WhitePoint;
 
@@ -50,7 +48,6 @@ public class LabChooserJFrame extends JFrame {
 			public void stateChanged(ChangeEvent e) {
 				currL = slider.getValue();
 				contentPane.drawColorChooser();
-				contentPane.repaint();
 			}
 		});
 		getContentPane().add(slider, BorderLayout.NORTH);
@@ -59,13 +56,12 @@ public class LabChooserJFrame extends JFrame {
 	
 	private class LabChooserJPanel extends JPanel {
 		
-		private BufferedImage image;
-		private CIELab cielab = new CIELab();
+		private final TiledImageRenderer renderer;
 		
 		
 		
 		public LabChooserJPanel(){
-			image = new BufferedImage(CHOOSER_WIDTH_PIXEL,CHOOSER_HEIGHT_PIXEL, BufferedImage.TYPE_INT_ARGB);
+			renderer = new TiledImageRenderer(CHOOSER_WIDTH_PIXEL, CHOOSER_HEIGHT_PIXEL, this);
 			
 			drawColorChooser();
 			
@@ -91,22 +87,44 @@ public class LabChooserJFrame extends JFrame {
 			// TODO Auto-generated method stub
 			super.paintComponent(g);
 			
-			g.drawImage(image, 0, 0, null);
+			g.drawImage(renderer.getImage(), 0, 0, null);
 		}
 		
 		
 		private void drawColorChooser(){
-			for(int x=0; x<CHOOSER_WIDTH_PIXEL; x++){
-				for(int y=0; y<CHOOSER_HEIGHT_PIXEL; y++){
-					Color color = cielab.getColour(currL, x-100, y-100, false);
-					if(color==null){
-						color = Color.GRAY;
-					}
-					image.setRGB(x, y, color.getRGB());
+			renderer.render(getImageKey(currL), getConverter(currL));
+			// The next slider move is probably to a neighbour
+			for(int L = currL-1; L <= currL+1; L += 2){
+				if(L >= 0 && L <= 100){
+					renderer.prerender(getImageKey(L), getConverter(L));
 				}
 			}
 		}
 		
+		private ChooserImageCache.Key getImageKey(int L){
+			return new ChooserImageCache.Key("Lab", L, WhitePoint.D65,
+					CHOOSER_WIDTH_PIXEL, CHOOSER_HEIGHT_PIXEL);
+		}
+		
+		private TiledImageRenderer.PixelConverter getConverter(final double L){
+			return new TiledImageRenderer.PixelConverter() {
+				@Override
+				public void convertPixels(int y, int x0, int step, int count, int[] argb) {
+					double[] rowL = new double[count];
+					double[] rowA = new double[count];
+					double[] rowB = new double[count];
+					for(int i=0; i<count; i++){
+						rowL[i] = L;
+						rowA[i] = x0 + i*step - 100;
+						rowB[i] = y - 100;
+					}
+					// Out-of-gamut colors are gray
+					ColourConverter.labToRGB(rowL, rowA, rowB, rowL, rowA, rowB, count, WhitePoint.D65);
+					ColourConverter.RGBtoPixels(rowL, rowA, rowB, argb, 0, count, Color.GRAY.getRGB());
+				}
+			};
+		}
+		
 	}
 
 }
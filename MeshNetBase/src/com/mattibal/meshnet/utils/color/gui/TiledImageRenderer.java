@@ -0,0 +1,229 @@
+package com.mattibal.meshnet.utils.color.gui;
+
+import java.awt.Component;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders the image of a color chooser in the background, split in tiles
+ * that are converted in parallel and written directly in the raster of
+ * the image.
+ *
+ * Every render first draws a coarse preview of the whole image, and then
+ * the image at full resolution, and the target component is repainted as
+ * every tile completes. Starting a new render abandons the previous one.
+ *
+ * Renders with a key are stored in a {@link ChooserImageCache}, and if the
+ * image is already there it's just copied. Images can also be rendered in
+ * advance, when the renderer is idle.
+ */
+public class TiledImageRenderer {
+
+	public static final int TILE_SIZE = 64;
+
+	/** In the preview a pixel is converted every PREVIEW_STEP in both directions */
+	public static final int PREVIEW_STEP = 4;
+
+	/** Converts the colors of the pixels of an image */
+	public interface PixelConverter {
+		/**
+		 * Converts count pixels of the row y, starting from the column x0
+		 * and moving by step columns, into ARGB values written from argb[0].
+		 * It's called by several threads at the same time.
+		 */
+		public void convertPixels(int y, int x0, int step, int count, int[] argb);
+	}
+
+	/** Shared by all the choosers, it has a thread for every processor */
+	private static final ExecutorService renderPool =
+			Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+					new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Chooser renderer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final BufferedImage image;
+	private final int[] pixels;
+	private final int width;
+	private final int height;
+	private final Component target;
+	private final ChooserImageCache cache;
+
+	/** Incremented at every render, the tiles of older renders stop */
+	private volatile int generation = 0;
+
+
+	/**
+	 * @param target The component that shows the image, repainted when a
+	 * tile is ready. It must draw the image at its origin.
+	 */
+	public TiledImageRenderer(int width, int height, Component target){
+		this(width, height, target, ChooserImageCache.getShared());
+	}
+	
+	public TiledImageRenderer(int width, int height, Component target, ChooserImageCache cache){
+		this.width = width;
+		this.height = height;
+		this.target = target;
+		this.cache = cache;
+		image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+	}
+
+	public BufferedImage getImage(){
+		return image;
+	}
+
+	/**
+	 * Starts rendering the image with the given converter, and returns
+	 * immediately.
+	 */
+	public void render(PixelConverter converter){
+		render(null, converter);
+	}
+	
+	/**
+	 * Like {@link #render(PixelConverter)}, but the image is taken from the
+	 * cache if it's there, or it's put there when it's complete.
+	 * 
+	 * @param key Identifies the image rendered by the converter, or null
+	 * to not use the cache
+	 */
+	public void render(ChooserImageCache.Key key, PixelConverter converter){
+		int gen;
+		synchronized(this){
+			gen = ++generation;
+		}
+		int[] cached = key != null ? cache.get(key) : null;
+		if(cached != null){
+			// The tiles of older renders check the generation with the lock
+			// held before writing, so they won't write anymore
+			System.arraycopy(cached, 0, pixels, 0, pixels.length);
+			target.repaint(0, 0, width, height);
+			return;
+		}
+		RenderResult result = null;
+		if(key != null){
+			int numTiles = ((width + TILE_SIZE - 1) / TILE_SIZE) * ((height + TILE_SIZE - 1) / TILE_SIZE);
+			result = new RenderResult(key, new int[pixels.length], numTiles);
+		}
+		// The pool is FIFO, so the preview of all the tiles comes first
+		for(int step : new int[]{PREVIEW_STEP, 1}){
+			for(int y=0; y<height; y+=TILE_SIZE){
+				for(int x=0; x<width; x+=TILE_SIZE){
+					renderPool.execute(new TileTask(gen, converter, x, y, step,
+							step == 1 ? result : null));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Renders an image in the cache, for example one that will probably be
+	 * requested soon, if it isn't there yet. It's done only when the
+	 * renderer is idle: it's abandoned if a render starts.
+	 */
+	public void prerender(final ChooserImageCache.Key key, final PixelConverter converter){
+		if(cache.contains(key)){
+			return;
+		}
+		final int gen = generation;
+		renderPool.execute(new Runnable() {
+			@Override
+			public void run() {
+				if(cache.contains(key)){
+					return;
+				}
+				int[] raster = new int[pixels.length];
+				int[] argb = new int[width];
+				for(int y=0; y<height; y++){
+					if(gen != generation){
+						return;
+					}
+					converter.convertPixels(y, 0, 1, width, argb);
+					System.arraycopy(argb, 0, raster, y*width, width);
+				}
+				cache.put(key, raster);
+			}
+		});
+	}
+	
+	
+	/** The raster of a render that will be put in the cache */
+	private static class RenderResult {
+		private final ChooserImageCache.Key key;
+		private final int[] raster;
+		private final AtomicInteger tilesLeft;
+		
+		private RenderResult(ChooserImageCache.Key key, int[] raster, int numTiles){
+			this.key = key;
+			this.raster = raster;
+			this.tilesLeft = new AtomicInteger(numTiles);
+		}
+	}
+
+
+	private class TileTask implements Runnable {
+
+		private final int gen;
+		private final PixelConverter converter;
+		private final int x0;
+		private final int y0;
+		private final int step;
+		/** Where the full resolution tile is copied, or null */
+		private final RenderResult result;
+
+		private TileTask(int gen, PixelConverter converter, int x0, int y0, int step,
+				RenderResult result){
+			this.gen = gen;
+			this.converter = converter;
+			this.x0 = x0;
+			this.y0 = y0;
+			this.step = step;
+			this.result = result;
+		}
+
+		@Override
+		public void run() {
+			int tileWidth = Math.min(TILE_SIZE, width - x0);
+			int tileHeight = Math.min(TILE_SIZE, height - y0);
+			int count = (tileWidth + step - 1) / step;
+			int[] argb = new int[count];
+			for(int y=y0; y<y0+tileHeight; y+=step){
+				if(gen != generation){
+					return;
+				}
+				converter.convertPixels(y, x0, step, count, argb);
+				synchronized(TiledImageRenderer.this){
+					if(gen != generation){
+						return;
+					}
+					// Fill the blocks of the preview, or just the row
+					int blockHeight = Math.min(step, y0 + tileHeight - y);
+					for(int by=y; by<y+blockHeight; by++){
+						int rowStart = by*width + x0;
+						for(int i=0; i<tileWidth; i++){
+							pixels[rowStart + i] = argb[i / step];
+						}
+					}
+				}
+				if(result != null){
+					System.arraycopy(argb, 0, result.raster, y*width + x0, tileWidth);
+				}
+			}
+			target.repaint(x0, y0, tileWidth, tileHeight);
+			if(result != null && result.tilesLeft.decrementAndGet() == 0){
+				cache.put(result.key, result.raster);
+			}
+		}
+	}
+
+}
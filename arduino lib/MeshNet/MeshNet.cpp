@@ -54,6 +54,7 @@ where:
     	0x3 = beaconChildResponse (to the parent)
     	0x4 = beaconParentResponse (to the base)
     	0x5 = assignAddress (to device)
+    	0x6 = data message to an address range (to devices)
     	others: reserved for future use, now must be considered invalid and packet discarded
     	
 "data message" type:
@@ -68,12 +69,25 @@ where:
     D = layer 4 data
     
 
+"data message to an address range" type:
+   byte 0       byte 1     byte 2     byte 3     byte 4
+  +----------+----------+----------+----------+-----
+  | ----0110 | SSSSSSSS | EEEEEEEE | DDDDDDDD | DD.....
+  +----------+----------+----------+----------+-----
+where:
+    S = first address of the range
+    E = last address of the range
+    D = layer 4 data, that every device with an address in the range receives
+    A device forwards this packet once to every child that routes some addresses of the range.
+    
+
 "beacon" type:
    byte 0       byte 1     byte 2     byte 3     byte 4     byte 5     byte 6
   +----------+----------+----------+----------+----------+----------+----------+
-  | ----0010 | NNNNNNNN | NNNNNNNN | BBBBBBBB | BBBBBBBB | BBBBBBBB | BBBBBBBB |
+  | JJJJ0010 | NNNNNNNN | NNNNNNNN | BBBBBBBB | BBBBBBBB | BBBBBBBB | BBBBBBBB |
   +----------+----------+----------+----------+----------+----------+----------+
 where:
+    J = "JoinRound", 0 when the base builds a new tree. When it sends again the beacon of the same tree to find new devices, it increments this, so the devices that have already answered forward the beacon once more
     N = "NetworkID" a 16 bit identificator of this network, shared by all bases and devices of this network
     B = "BaseNonce", a 32 bit random nonce generated by the base, devices must append this in their HMAC key when they send a message to the base
    TODO gli metto anche l'HMAC fatto con "BaseNonce precedente a questo"+"NetworkKey"? In questo modo quando un device si è "agganciato" alla sequenza di beacon, resiste meglio agli attacchi
@@ -186,6 +200,9 @@ uint8_t toBaseMacAddress;
 // My address
 uint8_t myAddress;
 
+// The join round of the last beacon forwarded, it's in the high 4 bits of the beacon type byte
+uint8_t lastJoinRound = 0;
+
 // Nonces
 uint32_t baseNonce;
 uint32_t myChildNonce;
@@ -211,6 +228,7 @@ uint32_t newMyChildNonce;
 
 #define DATA_TO_BASE 0x00
 #define DATA_TO_DEVICE 0x01
+#define DATA_TO_RANGE 0x06
 
 #define BEACON_TYPE 0x02
 typedef struct {
@@ -345,10 +363,41 @@ void sendDeviceInfoCommand(){
 }
 
 
+// Requests with a sequence number (layer4 packet: [command|0x80][seq][data])
+// must be answered with a response with the same command and seq, so the base
+// knows that the command has been executed.
+#define REQUEST_SEQ_FLAG 0x80
+int16_t currentRequestSeq = -1; // -1 if I'm not handling a request with seq
+uint8_t currentRequestCommand;
+uint8_t responseSent;
+
+// Answer to the request that I'm handling, it can be called by the sketch
+// inside onCommandReceived. If it doesn't, an empty response is sent.
+void sendCommandResponse(void* data, uint8_t dataLen){
+    if(currentRequestSeq < 0 || responseSent){
+        return;
+    }
+    unsigned char response[40];
+    if(dataLen > sizeof(response)-1){
+        dataLen = sizeof(response)-1;
+    }
+    response[0] = (uint8_t) currentRequestSeq;
+    memcpy(response+1, data, dataLen);
+    sendCommand(currentRequestCommand | REQUEST_SEQ_FLAG, response, dataLen+1);
+    responseSent = 1;
+}
+
 // Handles an incoming layer4 packet
 void handleDataPacket(unsigned char* message, uint8_t len){
     if(*message == 0x00 && len >= sizeof(deviceInfoCommand)){
         sendDeviceInfoCommand();
+    } else if((*message & REQUEST_SEQ_FLAG) && len >= 2){
+        currentRequestCommand = *message & ~REQUEST_SEQ_FLAG;
+        currentRequestSeq = message[1];
+        responseSent = 0;
+        onCommandReceived(currentRequestCommand, (void*) (message+2), len-2);
+        sendCommandResponse(NULL, 0);
+        currentRequestSeq = -1;
     } else {
         unsigned char* data = message+1;
         onCommandReceived((uint8_t)*message, (void*) data, len-1);
@@ -425,6 +474,22 @@ void processIncomingPacket(unsigned char* message, uint8_t len, uint8_t interfac
     	    }
     	}
     	
+    } else if(msgType == 0x06){
+        // Message to all devices in an address range
+        
+        uint8_t startAddr = message[1];
+        uint8_t stopAddr = message[2];
+        // Forward it only once to every child that routes some of these addresses
+        int i;
+        for(i=0; i<routingTableLen; i++){
+            if(routingTable[i].address <= stopAddr && routingTable[i].maxRoute >= startAddr){
+                sendPacket(message, len, routingTable[i].interface, routingTable[i].macAddress);
+            }
+        }
+        if(myAddress >= startAddr && myAddress <= stopAddr){
+            handleDataPacket(message+3, len-3);
+        }
+        
     } else if(msgType == 0x02){
     
         // Beacon
@@ -434,10 +499,21 @@ void processIncomingPacket(unsigned char* message, uint8_t len, uint8_t interfac
         beacon *rec = (beacon *) message;
         if(rec->networkId == networkId){
             
-            // Save new temporary network config
+            uint8_t joinRound = message[0] >> 4;
             if(rec->baseNonce == newBaseNonce){
+                // I've already answered to this beacon, but the base is searching for
+                // new devices: I only forward it, once for every join round
+                if(joinRound != lastJoinRound){
+                    lastJoinRound = joinRound;
+                    int interf;
+                    for(interf=0; interf<NUM_INTERFACES; interf++){
+                        sendPacket((unsigned char *) rec, sizeof(beacon), interf, 0);
+                    }
+                }
                 return;
             }
+            lastJoinRound = joinRound;
+            // Save new temporary network config
             newBaseNonce = rec->baseNonce;
             newToBaseInterface = interface;
             newToBaseMacAddress = macAddress;
@@ -53,6 +53,7 @@ void onCommandReceived(uint8_t command, void* data, uint8_t dataLen);
 void processIncomingPacket(unsigned char*, uint8_t, uint8_t, uint8_t);
 
 void sendCommand(uint8_t command, void* data, uint8_t dataLen); // called by the sketch
+void sendCommandResponse(void* data, uint8_t dataLen); // called by the sketch inside onCommandReceived
 
 extern uint16_t networkId;
 